@@ -0,0 +1,36 @@
+package com.condation.modules.api;
+
+/*-
+ * #%L
+ * modules-api
+ * %%
+ * Copyright (C) 2023 - 2026 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+/**
+ * Creates extension instances without reflection. Implementations are generated by the
+ * {@link com.condation.modules.api.annotation.ExtensionAnnotationProcessor} for every extension.
+ *
+ * @author t.marx
+ * @param <T> the type of the extension
+ */
+public interface ExtensionFactory<T> {
+	
+	T create ();
+}
@@ -50,6 +50,19 @@ public interface ModuleManager extends AutoCloseable {
 	 */
 	boolean deactivateModule(final String moduleId) throws IOException;
 
+	/**
+	 * Replaces an active module with the version currently installed in the modules path. Implementations may load the
+	 * new version side by side and switch without downtime, the default deactivates and activates the module.
+	 *
+	 * @param moduleId the id of the module
+	 * @return true if the new version is active
+	 * @throws IOException
+	 */
+	default boolean upgradeModule(final String moduleId) throws IOException {
+		deactivateModule(moduleId);
+		return activateModule(moduleId);
+	}
+
 	void initModules();
 	
 	/**
@@ -69,6 +82,19 @@ public interface ModuleManager extends AutoCloseable {
 	 */
 	<T extends ExtensionPoint> List<T> extensions(Class<T> extensionClass);
 
+	/**
+	 * Returns all Extensions of the given type for a request. Request scoped extensions are shared by all lookups with
+	 * the same request context. The default ignores the request context.
+	 *
+	 * @param <T>
+	 * @param extensionClass
+	 * @param requestContext the context of the current request, null to use the {@link ModuleRequestContextFactory}
+	 * @return
+	 */
+	default <T extends ExtensionPoint> List<T> extensions(Class<T> extensionClass, ModuleRequestContext requestContext) {
+		return extensions(extensionClass);
+	}
+
 	public Module module(final String id);
 	
 	/**
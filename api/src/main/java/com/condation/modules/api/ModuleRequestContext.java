@@ -23,6 +23,7 @@ package com.condation.modules.api;
  */
 
 
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * The Context is passed to the module. It can be used to inject implementation dependend objects or functionality
@@ -30,4 +31,14 @@ package com.condation.modules.api;
  * @author marx
  */
 public interface ModuleRequestContext {
+	
+	/**
+	 * Returns the store for request scoped extensions. The store must live as long as the request.
+	 * If null is returned, request scoped extensions are created on every lookup.
+	 * 
+	 * @return the store for request scoped extensions or null
+	 */
+	default ConcurrentMap<Object, Object> requestScopedExtensions () {
+		return null;
+	}
 }
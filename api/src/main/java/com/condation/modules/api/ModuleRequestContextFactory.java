@@ -24,10 +24,18 @@ package com.condation.modules.api;
 
 
 /**
+ * Provides the request context for extension lookups without an explicit request context.
  *
  * @author t.marx
  */
 public interface ModuleRequestContextFactory {
 	
+	/**
+	 * Returns the context of the current request, it is called once per extension lookup. Request scoped extensions
+	 * are only shared within a request if every lookup of the request gets the same context, usually one bound to the
+	 * current thread. A request scoped extension keeps the context it was created with.
+	 * 
+	 * @return the context of the current request or null
+	 */
 	ModuleRequestContext createContext ();
 }
@@ -38,4 +38,40 @@ import java.lang.annotation.Target;
 @Repeatable(Extensions.class)
 public @interface Extension {
 	Class<? extends ExtensionPoint> value();
+	
+	/**
+	 * The scope of the extension instances.
+	 * 
+	 * @return the scope, defaults to {@link Scope#PROTOTYPE}
+	 */
+	Scope scope() default Scope.PROTOTYPE;
+	
+	/**
+	 * If false, the manager hands out the raw extension instance without a proxy. Calls are not wrapped
+	 * with the module classloader as thread context classloader, so this should only be used for extensions
+	 * that do not rely on the context classloader. Calls are not counted either, when the module is deactivated
+	 * or upgraded it is closed without waiting for running calls of such extensions.
+	 * 
+	 * A proxy only extends the extension point and implements the interfaces of the extension, so callers that
+	 * cast to the implementation class need proxy = false.
+	 * 
+	 * @return true if the extension should be proxied, defaults to true
+	 */
+	boolean proxy() default true;
+	
+	public enum Scope {
+		/**
+		 * One instance per extension point and module activation, created and initialized on the first lookup.
+		 * Singletons are shared between requests and do not get a request context.
+		 */
+		SINGLETON,
+		/**
+		 * One instance per request, stored in {@link com.condation.modules.api.ModuleRequestContext#requestScopedExtensions()}.
+		 */
+		REQUEST,
+		/**
+		 * A new instance on every lookup.
+		 */
+		PROTOTYPE;
+	}
 }
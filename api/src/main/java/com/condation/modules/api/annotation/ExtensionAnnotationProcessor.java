@@ -21,10 +21,13 @@ package com.condation.modules.api.annotation;
  * <http://www.gnu.org/licenses/gpl-3.0.html>.
  * #L%
  */
+import com.condation.modules.api.ExtensionFactory;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.file.NoSuchFileException;
@@ -32,22 +35,28 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.TreeMap;
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.Filer;
 import javax.annotation.processing.Processor;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
 import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.MirroredTypesException;
+import javax.lang.model.util.ElementFilter;
 import javax.lang.model.util.Elements;
 import javax.tools.Diagnostic.Kind;
 import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
 import javax.tools.StandardLocation;
 
 @SupportedAnnotationTypes({
@@ -61,12 +70,32 @@ public class ExtensionAnnotationProcessor extends AbstractProcessor implements P
 		return SourceVersion.latest();
 	}
 
+	/**
+	 * All extensions of this compilation, the index is written when processing is over.
+	 */
+	private final Map<String, Map<String, ExtensionIndex.Entry>> index = new TreeMap<>();
+
+	/**
+	 * Implementations with a generated factory, an implementation may provide multiple extensions.
+	 */
+	private final Set<String> factories = new HashSet<>();
+
+	/**
+	 * Top level types compiled in this compilation, their extensions of an existing index are replaced.
+	 */
+	private final Set<String> compiled = new HashSet<>();
+
 	@Override
 	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		ElementFilter.typesIn(roundEnv.getRootElements())
+				.forEach(type -> compiled.add(processingEnv.getElementUtils().getBinaryName(type).toString()));
 		if (roundEnv.processingOver()) {
+			if (!index.isEmpty()) {
+				writeIndex();
+			}
 			return false;
 		}
-		Map<String, Set<String>> extensions = new HashMap<>();
+		Map<String, Map<String, ExtensionIndex.Entry>> extensions = new HashMap<>();
 
 		Elements elements = processingEnv.getElementUtils();
 
@@ -78,14 +107,16 @@ public class ExtensionAnnotationProcessor extends AbstractProcessor implements P
 				if (!(a == null)) {
 					if (!(!e.getKind().isClass() && !e.getKind().isInterface())) {
 						TypeElement typedElement = (TypeElement) e;
+						boolean factory = factory(typedElement);
 						Collection<TypeElement> teCollection = getTypeElements(typedElement, a);
 						teCollection.forEach((te) -> {
 							String extensionName = elements.getBinaryName(te).toString();
 							String extensionImplName = elements.getBinaryName(typedElement).toString();
 							if (!extensions.containsKey(extensionName)) {
-								extensions.put(extensionName, new TreeSet<>());
+								extensions.put(extensionName, new TreeMap<>());
 							}
-							extensions.get(extensionName).add(extensionImplName);
+							extensions.get(extensionName).put(extensionImplName, 
+									new ExtensionIndex.Entry(extensionName, extensionImplName, a.scope(), a.proxy(), factory));
 						});
 					}
 				}
@@ -102,7 +133,10 @@ public class ExtensionAnnotationProcessor extends AbstractProcessor implements P
 				BufferedReader r = new BufferedReader(new InputStreamReader(extensionFileObject.openInputStream(), "UTF-8"));
 				String line;
 				while ((line = r.readLine()) != null) {
-					e.getValue().add(line);
+					ExtensionIndex.Entry entry = ExtensionIndex.Entry.fromServiceLine(contract, line);
+					if (entry != null) {
+						e.getValue().putIfAbsent(entry.implementation(), entry);
+					}
 				}
 				r.close();
 			} catch (FileNotFoundException fnfe) {
@@ -124,18 +158,130 @@ public class ExtensionAnnotationProcessor extends AbstractProcessor implements P
 				processingEnv.getMessager().printMessage(Kind.NOTE, "Creating META-INF/services/" + extension);
 				FileObject f = filer.createResource(StandardLocation.CLASS_OUTPUT, "", "META-INF/services/" + extension);
 				PrintWriter pw = new PrintWriter(new OutputStreamWriter(f.openOutputStream(), "UTF-8"));
-				for (String value : e.getValue()) {
-					pw.println(value);
+				for (ExtensionIndex.Entry value : e.getValue().values()) {
+					pw.println(value.toServiceLine());
 				}
 				pw.close();
 			} catch (IOException x) {
 				processingEnv.getMessager().printMessage(Kind.ERROR, "Error creating extension file: " + x);
 			}
+			index.computeIfAbsent(e.getKey(), contract -> new TreeMap<>()).putAll(e.getValue());
 		});
 
 		return false;
 	}
 
+	/**
+	 * Writes the binary index of all extensions. Extensions of an existing index (incremental compilation) are kept if
+	 * their implementation still exists and was not compiled again.
+	 */
+	private void writeIndex() {
+		final Filer filer = processingEnv.getFiler();
+		try {
+			FileObject existing = filer.getResource(StandardLocation.CLASS_OUTPUT, "", ExtensionIndex.LOCATION);
+			try (InputStream in = existing.openInputStream()) {
+				ExtensionIndex.read(in).stream().filter(this::unchanged).forEach(entry -> {
+					index.computeIfAbsent(entry.contract(), contract -> new TreeMap<>())
+							.putIfAbsent(entry.implementation(), entry);
+				});
+			}
+		} catch (IOException x) {
+			// no or unreadable existing index
+		}
+
+		try {
+			processingEnv.getMessager().printMessage(Kind.NOTE, "Creating " + ExtensionIndex.LOCATION);
+			FileObject f = filer.createResource(StandardLocation.CLASS_OUTPUT, "", ExtensionIndex.LOCATION);
+			try (OutputStream out = f.openOutputStream()) {
+				ExtensionIndex.write(out, index.values().stream().flatMap(impls -> impls.values().stream()).toList());
+			}
+		} catch (IOException x) {
+			processingEnv.getMessager().printMessage(Kind.ERROR, "Error creating extension index: " + x);
+		}
+	}
+
+	/**
+	 * @return true if the implementation of the entry still exists and its top level type was not compiled in this
+	 * compilation, the extensions of a compiled type are all known
+	 */
+	private boolean unchanged(final ExtensionIndex.Entry entry) {
+		Elements elements = processingEnv.getElementUtils();
+		TypeElement implementation = elements.getTypeElement(entry.implementation().replace('$', '.'));
+		if (implementation == null) {
+			return false;
+		}
+		Element topLevel = implementation;
+		while (topLevel.getEnclosingElement() instanceof TypeElement enclosing) {
+			topLevel = enclosing;
+		}
+		return !compiled.contains(elements.getBinaryName((TypeElement) topLevel).toString());
+	}
+
+	/**
+	 * Generates the {@link ExtensionFactory} for the implementation if it can be created with a plain {@code new}.
+	 * 
+	 * @return true if a factory exists for the implementation
+	 */
+	private boolean factory(final TypeElement implementation) {
+		Elements elements = processingEnv.getElementUtils();
+		String implName = elements.getBinaryName(implementation).toString();
+		if (factories.contains(implName)) {
+			return true;
+		}
+		if (!isInstantiable(implementation)) {
+			processingEnv.getMessager().printMessage(Kind.NOTE, "no factory for %s, no accessible no-arg constructor".formatted(implName));
+			return false;
+		}
+
+		String factoryName = implName + ExtensionIndex.FACTORY_SUFFIX;
+		String packageName = elements.getPackageOf(implementation).getQualifiedName().toString();
+		String factorySimpleName = packageName.isEmpty() ? factoryName : factoryName.substring(packageName.length() + 1);
+		String typeName = implementation.getQualifiedName().toString();
+		boolean generic = !implementation.getTypeParameters().isEmpty();
+
+		try {
+			JavaFileObject source = processingEnv.getFiler().createSourceFile(factoryName, implementation);
+			try (PrintWriter pw = new PrintWriter(source.openWriter())) {
+				if (!packageName.isEmpty()) {
+					pw.println("package " + packageName + ";");
+					pw.println();
+				}
+				pw.println("@javax.annotation.processing.Generated(\"" + ExtensionAnnotationProcessor.class.getName() + "\")");
+				pw.println("public final class " + factorySimpleName + " implements " + ExtensionFactory.class.getName() 
+						+ "<" + typeName + (generic ? "<?>" : "") + "> {");
+				pw.println();
+				pw.println("\t@Override");
+				pw.println("\tpublic " + typeName + (generic ? "<?>" : "") + " create() {");
+				pw.println("\t\treturn new " + typeName + (generic ? "<>" : "") + "();");
+				pw.println("\t}");
+				pw.println("}");
+			}
+			factories.add(implName);
+			return true;
+		} catch (IOException x) {
+			processingEnv.getMessager().printMessage(Kind.WARNING, "Error creating extension factory: " + x, implementation);
+			return false;
+		}
+	}
+
+	private boolean isInstantiable(final TypeElement type) {
+		if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)) {
+			return false;
+		}
+		for (Element current = type; current instanceof TypeElement; current = current.getEnclosingElement()) {
+			if (current.getModifiers().contains(Modifier.PRIVATE)) {
+				return false;
+			}
+			if (current.getEnclosingElement() instanceof TypeElement && !current.getModifiers().contains(Modifier.STATIC)) {
+				return false;
+			}
+		}
+		return ElementFilter.constructorsIn(type.getEnclosedElements()).stream()
+				.anyMatch(constructor -> constructor.getParameters().isEmpty()
+						&& constructor.getThrownTypes().isEmpty()
+						&& !constructor.getModifiers().contains(Modifier.PRIVATE));
+	}
+
 	private Collection<TypeElement> getTypeElements(TypeElement type, Extension a) {
 		List<TypeElement> typeElements = new ArrayList<>();
 
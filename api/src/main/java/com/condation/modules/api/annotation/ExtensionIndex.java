@@ -0,0 +1,208 @@
+package com.condation.modules.api.annotation;
+
+/*-
+ * #%L
+ * modules-api
+ * %%
+ * Copyright (C) 2023 - 2026 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary index of all extensions of a module jar, written by the {@link ExtensionAnnotationProcessor} next to the
+ * service files and read by the module manager in one pass.
+ * 
+ * Format (version 1): magic, version, number of contracts and for every contract its name followed by the
+ * implementations with name, scope and flags (proxy, factory).
+ *
+ * @author thmarx
+ */
+public final class ExtensionIndex {
+
+	public static final String LOCATION = "META-INF/modules/extensions.idx";
+
+	public static final int VERSION = 1;
+
+	private static final int MAGIC = 0x434D4958;
+
+	/**
+	 * Suffix of the generated {@link com.condation.modules.api.ExtensionFactory} class of an implementation.
+	 */
+	public static final String FACTORY_SUFFIX = "_ExtensionFactory";
+
+	private static final int FLAG_PROXY = 1;
+
+	private static final int FLAG_FACTORY = 2;
+
+	private ExtensionIndex() {
+	}
+
+	/**
+	 * One implementation of an extension point.
+	 * 
+	 * @param contract the binary name of the extension point
+	 * @param implementation the binary name of the implementation
+	 * @param scope the scope of the instances
+	 * @param proxy false if the raw instance should be used
+	 * @param factory true if a factory was generated for the implementation
+	 */
+	public record Entry(String contract, String implementation, Extension.Scope scope, boolean proxy, boolean factory) {
+
+		/**
+		 * Returns the binary name of the generated factory.
+		 * 
+		 * @return the name of the factory class
+		 */
+		public String factoryName() {
+			return implementation + FACTORY_SUFFIX;
+		}
+
+		/**
+		 * Parses a line of a service file, attributes are written as comment behind the implementation name.
+		 * 
+		 * @param contract the extension point
+		 * @param line the line of the service file
+		 * @return the entry or null for empty and comment lines
+		 */
+		public static Entry fromServiceLine(final String contract, final String line) {
+			int commentStart = line.indexOf('#');
+			String implementation = (commentStart >= 0 ? line.substring(0, commentStart) : line).trim();
+			if (implementation.isEmpty()) {
+				return null;
+			}
+			Extension.Scope scope = Extension.Scope.PROTOTYPE;
+			boolean proxy = true;
+			boolean factory = false;
+			if (commentStart >= 0) {
+				for (String attribute : line.substring(commentStart + 1).trim().split("\\s+")) {
+					if (attribute.startsWith("scope=")) {
+						try {
+							scope = Extension.Scope.valueOf(attribute.substring("scope=".length()));
+						} catch (IllegalArgumentException iae) {
+							// unknown scope, keep the default
+						}
+					} else if (attribute.startsWith("proxy=")) {
+						proxy = Boolean.parseBoolean(attribute.substring("proxy=".length()));
+					} else if (attribute.startsWith("factory=")) {
+						factory = Boolean.parseBoolean(attribute.substring("factory=".length()));
+					}
+				}
+			}
+			return new Entry(contract, implementation, scope, proxy, factory);
+		}
+
+		/**
+		 * Returns the line for the service file, the attributes are written as comment so the file stays readable
+		 * for the {@link java.util.ServiceLoader}.
+		 * 
+		 * @return the service file line
+		 */
+		public String toServiceLine() {
+			List<String> attributes = new ArrayList<>();
+			if (scope != Extension.Scope.PROTOTYPE) {
+				attributes.add("scope=" + scope.name());
+			}
+			if (!proxy) {
+				attributes.add("proxy=false");
+			}
+			if (factory) {
+				attributes.add("factory=true");
+			}
+			if (attributes.isEmpty()) {
+				return implementation;
+			}
+			return implementation + " # " + String.join(" ", attributes);
+		}
+	}
+
+	/**
+	 * Writes the index.
+	 * 
+	 * @param out the stream, it is not closed
+	 * @param entries the entries
+	 * @throws IOException 
+	 */
+	public static void write(final OutputStream out, final Collection<Entry> entries) throws IOException {
+		Map<String, List<Entry>> contracts = new LinkedHashMap<>();
+		entries.forEach(entry -> contracts.computeIfAbsent(entry.contract(), c -> new ArrayList<>()).add(entry));
+
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeShort(VERSION);
+		data.writeInt(contracts.size());
+		for (Map.Entry<String, List<Entry>> contract : contracts.entrySet()) {
+			data.writeUTF(contract.getKey());
+			data.writeInt(contract.getValue().size());
+			for (Entry entry : contract.getValue()) {
+				data.writeUTF(entry.implementation());
+				data.writeUTF(entry.scope().name());
+				data.writeByte((entry.proxy() ? FLAG_PROXY : 0) | (entry.factory() ? FLAG_FACTORY : 0));
+			}
+		}
+		data.flush();
+	}
+
+	/**
+	 * Reads the index.
+	 * 
+	 * @param in the stream, it is not closed
+	 * @return the entries
+	 * @throws IOException if the stream is not an index, the version is not supported or a scope is unknown
+	 */
+	public static List<Entry> read(final InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		if (data.readInt() != MAGIC) {
+			throw new IOException("not an extension index");
+		}
+		int version = data.readUnsignedShort();
+		if (version != VERSION) {
+			throw new IOException("unsupported extension index version " + version);
+		}
+		List<Entry> entries = new ArrayList<>();
+		int contracts = data.readInt();
+		for (int i = 0; i < contracts; i++) {
+			String contract = data.readUTF();
+			int implementations = data.readInt();
+			for (int j = 0; j < implementations; j++) {
+				String implementation = data.readUTF();
+				String scopeName = data.readUTF();
+				Extension.Scope scope;
+				try {
+					scope = Extension.Scope.valueOf(scopeName);
+				} catch (IllegalArgumentException e) {
+					throw new IOException("unknown extension scope " + scopeName + " of " + implementation, e);
+				}
+				int flags = data.readUnsignedByte();
+				entries.add(new Entry(contract, implementation, scope, (flags & FLAG_PROXY) != 0, (flags & FLAG_FACTORY) != 0));
+			}
+		}
+		return entries;
+	}
+}
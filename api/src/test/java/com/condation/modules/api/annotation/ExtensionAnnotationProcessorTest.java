@@ -0,0 +1,265 @@
+package com.condation.modules.api.annotation;
+
+/*-
+ * #%L
+ * modules-api
+ * %%
+ * Copyright (C) 2023 - 2026 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import com.condation.modules.api.ExtensionFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+/**
+ *
+ * @author thmarx
+ */
+public class ExtensionAnnotationProcessorTest {
+
+	/**
+	 * Two extension points and a base class for the extensions, compiled with every test.
+	 */
+	private static final Map<String, String> EXTENSION_POINTS = Map.of(
+			"test/Greeter.java", """
+					package test;
+					public interface Greeter extends com.condation.modules.api.ExtensionPoint<com.condation.modules.api.Context, com.condation.modules.api.ModuleRequestContext> {}
+					""",
+			"test/Filter.java", """
+					package test;
+					public interface Filter extends com.condation.modules.api.ExtensionPoint<com.condation.modules.api.Context, com.condation.modules.api.ModuleRequestContext> {}
+					""",
+			"test/Base.java", """
+					package test;
+					public abstract class Base extends com.condation.modules.api.BaseExtension<com.condation.modules.api.Context, com.condation.modules.api.ModuleRequestContext> {
+						@Override
+						public void init() {
+						}
+					}
+					""");
+
+	@TempDir
+	Path sources;
+
+	@TempDir
+	Path output;
+
+	@Test
+	void service_lines_carry_the_attributes() throws IOException {
+		compile(Map.of(
+				"test/SingletonGreeter.java", """
+						package test;
+						@com.condation.modules.api.annotation.Extension(value = Greeter.class, scope = com.condation.modules.api.annotation.Extension.Scope.SINGLETON, proxy = false)
+						public class SingletonGreeter extends Base implements Greeter {}
+						""",
+				"test/PlainGreeter.java", """
+						package test;
+						@com.condation.modules.api.annotation.Extension(Greeter.class)
+						public class PlainGreeter extends Base implements Greeter {}
+						"""));
+
+		List<ExtensionIndex.Entry> entries = serviceFile("test.Greeter");
+
+		assertThat(entries).extracting(ExtensionIndex.Entry::implementation)
+				.containsExactly("test.PlainGreeter", "test.SingletonGreeter");
+		assertThat(entries.get(0).scope()).isEqualTo(Extension.Scope.PROTOTYPE);
+		assertThat(entries.get(0).proxy()).isTrue();
+		assertThat(entries.get(1).scope()).isEqualTo(Extension.Scope.SINGLETON);
+		assertThat(entries.get(1).proxy()).isFalse();
+	}
+
+	@Test
+	void index_contains_all_contracts() throws IOException {
+		compile(Map.of(
+				"test/Both.java", """
+						package test;
+						@com.condation.modules.api.annotation.Extension(value = Greeter.class, scope = com.condation.modules.api.annotation.Extension.Scope.REQUEST)
+						@com.condation.modules.api.annotation.Extension(Filter.class)
+						public class Both extends Base implements Greeter, Filter {}
+						""",
+				"test/OtherFilter.java", """
+						package test;
+						@com.condation.modules.api.annotation.Extension(Filter.class)
+						public class OtherFilter extends Base implements Filter {}
+						"""));
+
+		List<ExtensionIndex.Entry> index = index();
+
+		assertThat(index).extracting(ExtensionIndex.Entry::contract, ExtensionIndex.Entry::implementation)
+				.containsExactly(
+						tuple("test.Filter", "test.Both"),
+						tuple("test.Filter", "test.OtherFilter"),
+						tuple("test.Greeter", "test.Both"));
+		assertThat(index.get(2).scope()).isEqualTo(Extension.Scope.REQUEST);
+		// the service files describe the same extensions
+		assertThat(serviceFile("test.Filter")).containsExactlyElementsOf(index.subList(0, 2));
+		assertThat(serviceFile("test.Greeter")).containsExactly(index.get(2));
+	}
+
+	@Test
+	void incremental_compilation_keeps_only_unchanged_extensions() throws IOException {
+		compile(Map.of(
+				"test/PlainGreeter.java", """
+						package test;
+						@com.condation.modules.api.annotation.Extension(Greeter.class)
+						public class PlainGreeter extends Base implements Greeter {}
+						""",
+				"test/RemovedGreeter.java", """
+						package test;
+						@com.condation.modules.api.annotation.Extension(Greeter.class)
+						public class RemovedGreeter extends Base implements Greeter {}
+						""",
+				"test/ChangedGreeter.java", """
+						package test;
+						@com.condation.modules.api.annotation.Extension(Greeter.class)
+						public class ChangedGreeter extends Base implements Greeter {}
+						"""));
+		Files.delete(output.resolve("test/RemovedGreeter.class"));
+
+		compile(Map.of(
+				"test/ChangedGreeter.java", """
+						package test;
+						public class ChangedGreeter extends Base implements Greeter {}
+						""",
+				"test/NewFilter.java", """
+						package test;
+						@com.condation.modules.api.annotation.Extension(Filter.class)
+						public class NewFilter extends Base implements Filter {}
+						"""));
+
+		assertThat(index()).extracting(ExtensionIndex.Entry::contract, ExtensionIndex.Entry::implementation)
+				.containsExactly(
+						tuple("test.Filter", "test.NewFilter"),
+						tuple("test.Greeter", "test.PlainGreeter"));
+	}
+
+	@Test
+	void no_index_without_extensions() throws IOException {
+		compile(Map.of());
+
+		assertThat(output.resolve(ExtensionIndex.LOCATION)).doesNotExist();
+	}
+
+	@Test
+	void factories_are_generated_for_instantiable_extensions() throws Exception {
+		compile(Map.of(
+				"test/PlainGreeter.java", """
+						package test;
+						@com.condation.modules.api.annotation.Extension(Greeter.class)
+						@com.condation.modules.api.annotation.Extension(Filter.class)
+						public class PlainGreeter extends Base implements Greeter, Filter {}
+						""",
+				"test/NamedGreeter.java", """
+						package test;
+						@com.condation.modules.api.annotation.Extension(Greeter.class)
+						public class NamedGreeter extends Base implements Greeter {
+							public NamedGreeter(String name) {}
+						}
+						""",
+				"test/Outer.java", """
+						package test;
+						public class Outer {
+							@com.condation.modules.api.annotation.Extension(Greeter.class)
+							public static class Nested extends Base implements Greeter {}
+							@com.condation.modules.api.annotation.Extension(Greeter.class)
+							public class Inner extends Base implements Greeter {}
+						}
+						"""));
+
+		assertThat(index()).extracting(ExtensionIndex.Entry::implementation, ExtensionIndex.Entry::factory)
+				.containsExactly(
+						tuple("test.PlainGreeter", true),
+						tuple("test.NamedGreeter", false),
+						tuple("test.Outer$Inner", false),
+						tuple("test.Outer$Nested", true),
+						tuple("test.PlainGreeter", true));
+		assertThat(serviceFile("test.Greeter")).extracting(ExtensionIndex.Entry::factory)
+				.containsExactly(false, false, true, true);
+
+		try (URLClassLoader loader = new URLClassLoader(new URL[]{output.toUri().toURL()}, getClass().getClassLoader())) {
+			for (String implementation : List.of("test.PlainGreeter", "test.Outer$Nested")) {
+				ExtensionFactory<?> factory = (ExtensionFactory<?>) loader.loadClass(implementation + ExtensionIndex.FACTORY_SUFFIX)
+						.getConstructor().newInstance();
+				Object first = factory.create();
+				assertThat(first.getClass().getName()).isEqualTo(implementation);
+				assertThat(factory.create()).isNotSameAs(first);
+			}
+		}
+		assertThat(output.resolve("test/NamedGreeter" + ExtensionIndex.FACTORY_SUFFIX + ".class")).doesNotExist();
+	}
+
+	List<ExtensionIndex.Entry> index() throws IOException {
+		try (InputStream in = Files.newInputStream(output.resolve(ExtensionIndex.LOCATION))) {
+			return ExtensionIndex.read(in);
+		}
+	}
+
+	List<ExtensionIndex.Entry> serviceFile(final String contract) throws IOException {
+		List<ExtensionIndex.Entry> entries = new ArrayList<>();
+		for (String line : Files.readAllLines(output.resolve("META-INF/services/" + contract), StandardCharsets.UTF_8)) {
+			ExtensionIndex.Entry entry = ExtensionIndex.Entry.fromServiceLine(contract, line);
+			if (entry != null) {
+				entries.add(entry);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Compiles the sources and the extension points with the processor into the output directory, the classes of
+	 * earlier compilations are on the classpath.
+	 */
+	void compile(final Map<String, String> files) throws IOException {
+		Map<String, String> all = new HashMap<>(EXTENSION_POINTS);
+		all.putAll(files);
+		List<Path> paths = new ArrayList<>();
+		for (Map.Entry<String, String> file : all.entrySet()) {
+			Path path = sources.resolve(file.getKey());
+			Files.createDirectories(path.getParent());
+			Files.writeString(path, file.getValue());
+			paths.add(path);
+		}
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+			Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromPaths(paths);
+			JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null,
+					List.of("-d", output.toString(), "-s", output.toString(), "-classpath", System.getProperty("java.class.path") + File.pathSeparator + output),
+					null, units);
+			task.setProcessors(List.of(new ExtensionAnnotationProcessor()));
+			assertThat(task.call()).isTrue();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.condation.modules.api.annotation;
+
+/*-
+ * #%L
+ * modules-api
+ * %%
+ * Copyright (C) 2023 - 2026 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ *
+ * @author thmarx
+ */
+public class ExtensionIndexTest {
+
+	private static final int MAGIC = 0x434D4958;
+
+	@Test
+	void round_trip() throws IOException {
+		List<ExtensionIndex.Entry> entries = List.of(
+				new ExtensionIndex.Entry("a.Contract", "a.Impl", Extension.Scope.SINGLETON, true, true),
+				new ExtensionIndex.Entry("a.Contract", "a.Other", Extension.Scope.PROTOTYPE, false, false),
+				new ExtensionIndex.Entry("b.Contract", "b.Impl$Inner", Extension.Scope.REQUEST, true, false));
+
+		assertThat(ExtensionIndex.read(new ByteArrayInputStream(write(entries)))).containsExactlyElementsOf(entries);
+	}
+
+	@Test
+	void empty_index() throws IOException {
+		assertThat(ExtensionIndex.read(new ByteArrayInputStream(write(List.of())))).isEmpty();
+	}
+
+	@Test
+	void rejects_newer_version() {
+		byte[] index = index(ExtensionIndex.VERSION + 1, out -> out.writeInt(0));
+
+		assertThatThrownBy(() -> ExtensionIndex.read(new ByteArrayInputStream(index)))
+				.isInstanceOf(IOException.class)
+				.hasMessageContaining("version");
+	}
+
+	@Test
+	void rejects_other_files() {
+		assertThatThrownBy(() -> ExtensionIndex.read(new ByteArrayInputStream("a.Impl\n".getBytes())))
+				.isInstanceOf(IOException.class)
+				.hasMessageContaining("not an extension index");
+	}
+
+	@Test
+	void rejects_unknown_scope() {
+		byte[] index = index(ExtensionIndex.VERSION, out -> {
+			out.writeInt(1);
+			out.writeUTF("a.Contract");
+			out.writeInt(1);
+			out.writeUTF("a.Impl");
+			out.writeUTF("UNKNOWN");
+			out.writeByte(0);
+		});
+
+		assertThatThrownBy(() -> ExtensionIndex.read(new ByteArrayInputStream(index)))
+				.isInstanceOf(IOException.class)
+				.hasMessageContaining("scope UNKNOWN");
+	}
+
+	@Test
+	void service_line_round_trip() {
+		ExtensionIndex.Entry entry = new ExtensionIndex.Entry("a.Contract", "a.Impl", Extension.Scope.REQUEST, false, true);
+
+		assertThat(entry.toServiceLine()).isEqualTo("a.Impl # scope=REQUEST proxy=false factory=true");
+		assertThat(ExtensionIndex.Entry.fromServiceLine("a.Contract", entry.toServiceLine())).isEqualTo(entry);
+	}
+
+	@Test
+	void plain_service_line_uses_defaults() {
+		assertThat(ExtensionIndex.Entry.fromServiceLine("a.Contract", "  a.Impl  "))
+				.isEqualTo(new ExtensionIndex.Entry("a.Contract", "a.Impl", Extension.Scope.PROTOTYPE, true, false));
+		assertThat(ExtensionIndex.Entry.fromServiceLine("a.Contract", "# comment")).isNull();
+		assertThat(ExtensionIndex.Entry.fromServiceLine("a.Contract", "a.Impl # scope=UNKNOWN").scope())
+				.isEqualTo(Extension.Scope.PROTOTYPE);
+	}
+
+	private static byte[] write(final List<ExtensionIndex.Entry> entries) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ExtensionIndex.write(out, entries);
+		return out.toByteArray();
+	}
+
+	private static byte[] index(final int version, final Body body) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeShort(version);
+			body.write(out);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@FunctionalInterface
+	private interface Body {
+
+		void write(DataOutputStream out) throws IOException;
+	}
+}
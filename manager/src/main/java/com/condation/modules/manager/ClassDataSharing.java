@@ -0,0 +1,94 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * Support for application class data sharing (AppCDS) of module classes.
+ * 
+ * The module class loaders define classes from the module jars with the jar as code source. The JVM can archive
+ * them in a dynamic CDS archive and maps them from the archive on the next start instead of parsing and verifying them
+ * again. The loaders still read the class bytes, the JVM uses the archived class if name, size and checksum match. The
+ * jars of a module are always added in the same order, so repeated starts set up the loaders the same way.
+ * 
+ * <p>
+ * Create the archive in a training run, the archive contains all classes loaded until the JVM exits. With the system
+ * property {@value #TRAINING_PROPERTY} (or {@link ModuleManagerImpl.Builder#classDataSharingTraining(boolean)}) the
+ * manager loads all classes of a module when it is activated, so classes not used by the training workload are
+ * archived too:
+ * </p>
+ * <pre>
+ * java -XX:ArchiveClassesAtExit=app.jsa -Dcondation.modules.cds.training=true -cp ... Main
+ * </pre>
+ * <p>
+ * Start with the archive:
+ * </p>
+ * <pre>
+ * java -XX:SharedArchiveFile=app.jsa -cp ... Main
+ * </pre>
+ * <p>
+ * Since Java 19 {@code -XX:+AutoCreateSharedArchive -XX:SharedArchiveFile=app.jsa} does both, the archive is created
+ * at the first start and recreated when the JDK or the class path changes. The application class path has to consist of
+ * jars only. Changed module jars need no new archive, changed classes are simply not taken from it. Only classes
+ * from jar files of module directories are archived. Classes from jars nested in a module archive have no jar file as
+ * code source and are always parsed, so are classes from signed jars and the generated extension proxies (hidden
+ * classes).
+ * </p>
+ * <p>
+ * Check with {@code -Xlog:class+load}: archived module classes are logged with
+ * {@code source: shared objects file (top)}, classes parsed at startup with their jar.
+ * </p>
+ * <p>
+ * No startup numbers are given here, none were measured for this framework. The gain depends on the number and size
+ * of the module classes and on how much of the startup is class loading. Measure it for the application:
+ * </p>
+ * <ol>
+ * <li>create the archive with a training run as above;</li>
+ * <li>start the application several times without and several times with {@code -XX:SharedArchiveFile}, with the
+ * same heap settings and a warm file system cache, and drop the first start of each series;</li>
+ * <li>compare the median of the time from the JVM start until {@link com.condation.modules.api.ModuleManager#initModules()}
+ * returned, e.g. logged with {@code ManagementFactory.getRuntimeMXBean().getUptime()};</li>
+ * <li>count the module classes taken from the archive in the {@code -Xlog:class+load} output of the runs with the
+ * archive, to verify that the archive was used.</li>
+ * </ol>
+ *
+ * @author thmarx
+ */
+public final class ClassDataSharing {
+
+	/**
+	 * System property to enable the training run.
+	 */
+	public static final String TRAINING_PROPERTY = "condation.modules.cds.training";
+
+	private ClassDataSharing() {
+	}
+
+	/**
+	 * Returns true if the system property {@value #TRAINING_PROPERTY} is set to true.
+	 *
+	 * @return true for a training run
+	 */
+	public static boolean isTrainingRun() {
+		return Boolean.getBoolean(TRAINING_PROPERTY);
+	}
+}
@@ -21,24 +21,51 @@ package com.condation.modules.manager;
  * <http://www.gnu.org/licenses/gpl-3.0.html>.
  * #L%
  */
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.util.Map;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.modifier.Ownership;
 import net.bytebuddy.description.modifier.Visibility;
-import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
-import net.bytebuddy.implementation.InvocationHandlerAdapter;
+import net.bytebuddy.dynamic.scaffold.subclass.ConstructorStrategy;
+import net.bytebuddy.implementation.FieldAccessor;
+import net.bytebuddy.implementation.MethodCall;
 import net.bytebuddy.implementation.attribute.MethodAttributeAppender;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
 import net.bytebuddy.matcher.ElementMatchers;
 
 public class ClassLoaderInterceptor {
 
 	private static final ByteBuddy BYTE_BUDDY = new ByteBuddy();
 	
-	private final Map<Class<?>, Class<?>> proxyCache = new ConcurrentHashMap<>();
+	private static final String TARGET_FIELD = "target";
+	private static final String CLASSLOADER_FIELD = "moduleClassLoader";
+	private static final String IN_FLIGHT_FIELD = "inFlight";
+	
+	private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class, Object.class, ClassLoader.class, AtomicLongArray.class);
+	
+	private static final Advice CONTEXT_CLASSLOADER_ADVICE = Advice.to(ContextClassLoaderAdvice.class);
+	
+	/**
+	 * Proxy-Konstruktoren pro Target-Klasse und Superklasse. Der Cache hängt per ClassValue an der Target-Klasse
+	 * und hält sie damit nicht fest: Proxies, Targets und der ClassLoader des Moduls können nach dem Schließen
+	 * des Moduls gemeinsam entladen werden.
+	 */
+	private static final ClassValue<ProxyFactory> PROXY_CACHE = new ClassValue<>() {
+		@Override
+		protected ProxyFactory computeValue(Class<?> type) {
+			return new ProxyFactory(type);
+		}
+	};
+	
 	private final ClassLoader moduleClassLoader;
 
 	public ClassLoaderInterceptor(ClassLoader moduleClassLoader) {
@@ -48,50 +75,188 @@ public class ClassLoaderInterceptor {
 	/**
 	 * Dynamisch Proxy erzeugen, das den ClassLoader für alle Methodenaufrufe
 	 * setzt.
+	 * 
+	 * Der Proxy ruft die Methoden des Targets direkt auf (keine Reflection), der Wechsel des ClassLoaders
+	 * wird per Advice in die generierten Methoden eingefügt.
+	 * 
+	 * Der Proxy ist keine Subklasse des Targets, sondern erweitert den Extension Point (falls es eine Klasse ist)
+	 * und implementiert alle öffentlichen Interfaces des Targets. Der Konstruktor des Targets wird also nicht ein
+	 * zweites Mal ausgeführt, das Target braucht keinen no-arg Konstruktor und der Proxy hält keine Kopie der Felder.
+	 * Ist der Extension Point eine Klasse, braucht nur er einen no-arg Konstruktor, der nicht private ist.
+	 * 
+	 * Casts und instanceof auf die Implementierung sind damit nicht möglich, nur auf den Extension Point und die
+	 * Interfaces des Targets. Wer die Implementierung selbst braucht, deklariert die Extension mit proxy = false.
+	 * 
+	 * equals, hashCode und toString werden an das Target weitergeleitet, ein Proxy verhält sich als Map Key oder im
+	 * Log also wie die Extension selbst.
+	 * 
+	 * Laufende Aufrufe werden in den Stripes von inFlight gezählt (siehe {@link InFlightCalls}), so kann ein Modul
+	 * vor dem Schließen warten, bis alle Aufrufe über seine Proxies beendet sind.
 	 */
 	@SuppressWarnings("unchecked")
-	public <T> T createProxy(Class<T> extensionClass, ClassLoader moduleClassLoader, T targetInstance) throws Exception {
+	public <T> T createProxy(Class<T> extensionClass, ClassLoader moduleClassLoader, T targetInstance, AtomicLongArray inFlight) throws Exception {
 		Class<?> targetClass = targetInstance.getClass();
+		Class<?> superClass = extensionClass.isInterface() ? Object.class : extensionClass;
+
+		MethodHandle constructor = PROXY_CACHE.get(targetClass).constructor(superClass);
+
+		try {
+			return (T) constructor.invokeExact(targetInstance, moduleClassLoader, inFlight);
+		} catch (Exception | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	private static final class ProxyFactory {
+
+		private final Class<?> targetClass;
+		private final ConcurrentMap<Class<?>, MethodHandle> constructors = new ConcurrentHashMap<>();
+		private volatile MethodHandles.Lookup lookup;
+
+		private ProxyFactory(final Class<?> targetClass) {
+			this.targetClass = targetClass;
+		}
+
+		MethodHandle constructor(final Class<?> superClass) {
+			MethodHandle constructor = constructors.get(superClass);
+			if (constructor == null) {
+				constructor = constructors.computeIfAbsent(superClass, this::createProxyConstructor);
+			}
+			return constructor;
+		}
+
+		/**
+		 * Der Proxy wird als Hidden Class im Package und ClassLoader des Targets definiert. Hidden Classes sind
+		 * nicht über ihren Namen auffindbar und werden entladen, sobald sie nicht mehr erreichbar sind.
+		 */
+		private MethodHandle createProxyConstructor(final Class<?> superClass) {
+			if (superClass != Object.class) {
+				checkSubclassable(superClass);
+			}
+			try {
+				byte[] proxyBytes = BYTE_BUDDY.subclass(superClass, ConstructorStrategy.Default.NO_CONSTRUCTORS)
+						.name(targetClass.getName() + "$ModuleProxy$" + superClass.getSimpleName())
+						.defineField(TARGET_FIELD, Object.class, Visibility.PRIVATE)
+						.defineField(CLASSLOADER_FIELD, ClassLoader.class, Visibility.PRIVATE)
+						// nur JDK Typen, der Proxy wird im ClassLoader des Moduls definiert
+						.defineField(IN_FLIGHT_FIELD, AtomicLongArray.class, Visibility.PRIVATE)
+						// Zusätzlich implementieren wir alle Interfaces, die die targetClass selbst implementiert.
+						.implement(publicInterfaces(targetClass).toArray(Class<?>[]::new))
+						// Der einzige Konstruktor setzt Target, ClassLoader und Zähler, der Konstruktor des Targets wird nicht aufgerufen.
+						.defineConstructor(Visibility.PUBLIC)
+						.withParameters(Object.class, ClassLoader.class, AtomicLongArray.class)
+						.intercept(MethodCall.invoke(superClass.getDeclaredConstructor())
+								.andThen(FieldAccessor.ofField(TARGET_FIELD).setsArgumentAt(0))
+								.andThen(FieldAccessor.ofField(CLASSLOADER_FIELD).setsArgumentAt(1))
+								.andThen(FieldAccessor.ofField(IN_FLIGHT_FIELD).setsArgumentAt(2)))
+						// Matcher: Fängt alle öffentlichen, nicht finalen Methoden außer dem Konstruktor ab, von Object.class nur
+						// equals, hashCode und toString.
+						.method(ElementMatchers.isPublic().and(ElementMatchers.not(ElementMatchers.isFinal().or(ElementMatchers.isConstructor())))
+								.and(ElementMatchers.not(ElementMatchers.isDeclaredBy(Object.class))
+										.or(ElementMatchers.isEquals()).or(ElementMatchers.isHashCode()).or(ElementMatchers.isToString())))
+						// Intercept: Direkter Aufruf auf dem Target, umhüllt vom Wechsel des ThreadContextClassLoaders.
+						.intercept(CONTEXT_CLASSLOADER_ADVICE.wrap(
+								MethodCall.invokeSelf().onField(TARGET_FIELD).withAllArguments()
+										.withAssigner(Assigner.DEFAULT, Assigner.Typing.DYNAMIC)))
+						.attribute(MethodAttributeAppender.ForInstrumentedMethod.INCLUDING_RECEIVER)
+						.make()
+						.getBytes();
 
-		Class<? extends T> proxyClass = (Class<? extends T>) proxyCache.computeIfAbsent(targetClass, clz -> {
-			return BYTE_BUDDY.subclass(clz)
-					.defineField("invocationHandler", InvocationHandler.class, Visibility.PRIVATE)
-					// Zusätzlich implementieren wir alle Interfaces, die die targetClass selbst implementiert.
-					.implement(clz.getInterfaces())
-					// Matcher: Fängt alle Methoden außer denen von Object.class und dem Konstruktor ab.
-					.method(ElementMatchers.not(ElementMatchers.isDeclaredBy(Object.class).or(ElementMatchers.isConstructor())))
-					// Intercept: Leitet den Aufruf an den InvocationHandler weiter.
-					.intercept(InvocationHandlerAdapter.toField("invocationHandler"))
-					.attribute(MethodAttributeAppender.ForInstrumentedMethod.INCLUDING_RECEIVER)
-					.make()
-					.load(moduleClassLoader, ClassLoadingStrategy.Default.CHILD_FIRST)
-					.getLoaded();
-		});
-
-		T proxy = (T) proxyClass.getConstructor().newInstance();
-		
-		InvocationHandler handler = new InvocationHandler() {
-			@Override
-			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-				// Handle Object methods directly without ClassLoader switching
-				if (method.getDeclaringClass() == Object.class) {
-					return method.invoke(targetInstance, args);
+				MethodHandles.Lookup proxyLookup = lookup().defineHiddenClass(proxyBytes, true);
+
+				return proxyLookup
+						.findConstructor(proxyLookup.lookupClass(), MethodType.methodType(void.class, Object.class, ClassLoader.class, AtomicLongArray.class))
+						.asType(CONSTRUCTOR_TYPE);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("can not create proxy for " + targetClass.getName(), e);
+			}
+		}
+
+		/**
+		 * Ist der Extension Point eine Klasse, ruft der Proxy dessen no-arg Konstruktor auf. Der Proxy liegt im Package
+		 * des Targets, ein package-private Konstruktor ist also nur im selben Package erreichbar.
+		 */
+		private void checkSubclassable(final Class<?> type) {
+			if (Modifier.isFinal(type.getModifiers())) {
+				throw new IllegalStateException("can not proxy extension " + targetClass.getName()
+						+ ": the extension point " + type.getName() + " is final, use proxy = false");
+			}
+			try {
+				int modifiers = type.getDeclaredConstructor().getModifiers();
+				if (Modifier.isPrivate(modifiers)
+						|| (!Modifier.isPublic(modifiers) && !Modifier.isProtected(modifiers) && !type.getPackageName().equals(targetClass.getPackageName()))) {
+					throw new IllegalStateException("can not proxy extension " + targetClass.getName()
+							+ ": the no-arg constructor of the extension point " + type.getName() + " is not accessible");
 				}
+			} catch (NoSuchMethodException e) {
+				throw new IllegalStateException("can not proxy extension " + targetClass.getName()
+						+ ": the extension point " + type.getName() + " has no no-arg constructor", e);
+			}
+		}
 
-				ClassLoader original = Thread.currentThread().getContextClassLoader();
+		/**
+		 * Hidden Classes können nur über einen Lookup mit vollen Rechten im Package des Targets definiert werden,
+		 * den liefert eine kleine Anker-Klasse neben dem Target.
+		 */
+		private MethodHandles.Lookup lookup() throws ReflectiveOperationException {
+			if (lookup == null) {
+				String anchorName = targetClass.getName() + "$ModuleProxyLookup";
+				Class<?> anchor;
 				try {
-					Thread.currentThread().setContextClassLoader(moduleClassLoader);
-					return method.invoke(targetInstance, args);
-				} finally {
-					Thread.currentThread().setContextClassLoader(original);
+					byte[] anchorBytes = BYTE_BUDDY.subclass(Object.class)
+							.name(anchorName)
+							.defineMethod("lookup", MethodHandles.Lookup.class, Visibility.PUBLIC, Ownership.STATIC)
+							.intercept(MethodCall.invoke(MethodHandles.class.getMethod("lookup")))
+							.make()
+							.getBytes();
+					anchor = MethodHandles.privateLookupIn(targetClass, MethodHandles.lookup()).defineClass(anchorBytes);
+				} catch (LinkageError e) {
+					// allready defined by a concurrent call
+					anchor = Class.forName(anchorName, false, targetClass.getClassLoader());
 				}
+				lookup = (MethodHandles.Lookup) anchor.getMethod("lookup").invoke(null);
 			}
-		};
-		
-		Field field = proxyClass.getDeclaredField("invocationHandler");
-		field.setAccessible(true);
-		field.set(proxy, handler);
-		
-		return proxy;
+			return lookup;
+		}
+	}
+
+	private static Set<Class<?>> publicInterfaces(final Class<?> type) {
+		Set<Class<?>> interfaces = new LinkedHashSet<>();
+		for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+			for (Class<?> iface : current.getInterfaces()) {
+				if (Modifier.isPublic(iface.getModifiers())) {
+					interfaces.add(iface);
+				}
+			}
+		}
+		return interfaces;
+	}
+
+	/**
+	 * Wird von ByteBuddy in jede Proxy-Methode inlined, die Klasse selbst wird zur Laufzeit nicht aufgerufen.
+	 */
+	static class ContextClassLoaderAdvice {
+
+		@Advice.OnMethodEnter
+		static ClassLoader enter(@Advice.FieldValue(CLASSLOADER_FIELD) ClassLoader moduleClassLoader,
+				@Advice.FieldValue(IN_FLIGHT_FIELD) AtomicLongArray inFlight) {
+			Thread thread = Thread.currentThread();
+			// der Stripe des Threads, ohne Lock und ohne gemeinsamen Zähler
+			int stripe = ((int) thread.threadId() & ((inFlight.length() >> InFlightCalls.STRIPE_SHIFT) - 1)) << InFlightCalls.STRIPE_SHIFT;
+			inFlight.getAndIncrement(stripe + InFlightCalls.STARTED);
+			ClassLoader original = thread.getContextClassLoader();
+			thread.setContextClassLoader(moduleClassLoader);
+			return original;
+		}
+
+		@Advice.OnMethodExit(onThrowable = Throwable.class)
+		static void exit(@Advice.Enter ClassLoader original, @Advice.FieldValue(IN_FLIGHT_FIELD) AtomicLongArray inFlight) {
+			Thread thread = Thread.currentThread();
+			thread.setContextClassLoader(original);
+			int stripe = ((int) thread.threadId() & ((inFlight.length() >> InFlightCalls.STRIPE_SHIFT) - 1)) << InFlightCalls.STRIPE_SHIFT;
+			inFlight.getAndIncrement(stripe + InFlightCalls.FINISHED);
+		}
 	}
 }
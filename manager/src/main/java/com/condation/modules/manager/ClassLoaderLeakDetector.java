@@ -0,0 +1,275 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.Closeable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verifies that the class loaders of closed modules are unloaded. Every closed loader is tracked by a phantom
+ * reference, a loader that is still reachable after the configured number of major collections is reported as leak,
+ * with the references that can be found cheaply (platform threads using the module class loader as context class
+ * loader or running a class of the module). The threads are enumerated without capturing their stacks, virtual threads
+ * can not be enumerated and are not part of the hints.
+ * 
+ * Only collections that can unload classes are counted, the kind is taken from the {@code gcAction} of the collection
+ * notification: {@code end of major GC} (full collections of Serial, Parallel and G1) and {@code end of GC cycle}
+ * (ZGC and Shenandoah, except the minor cycles of generational ZGC) count as one collection. G1 reports the remark and
+ * the cleanup pause of a concurrent cycle as {@code end of concurrent GC pause}, each counts half. Minor collections
+ * and the pauses of ZGC and Shenandoah, which belong to a cycle, are not counted. The check runs on the JMX
+ * notification of the collection and does not need a thread of its own.
+ *
+ * @author thmarx
+ */
+final class ClassLoaderLeakDetector implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ClassLoaderLeakDetector.class);
+
+	/**
+	 * Type of the collection notifications of the HotSpot collectors, {@code GarbageCollectionNotificationInfo}.
+	 */
+	private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+	private static final String MAJOR_GC = "end of major GC";
+	private static final String GC_CYCLE = "end of GC cycle";
+	private static final String CONCURRENT_GC_PAUSE = "end of concurrent GC pause";
+
+	private final int gcCycles;
+
+	/**
+	 * The major collections counted in halves, a concurrent G1 cycle is reported as two pauses.
+	 */
+	private final AtomicLong halfCollections = new AtomicLong();
+
+	private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<>();
+
+	/**
+	 * Holds the phantom references, they are only enqueued while they are reachable.
+	 */
+	private final Set<Tracked> tracked = ConcurrentHashMap.newKeySet();
+
+	private final Map<NotificationEmitter, NotificationListener> listeners = new ConcurrentHashMap<>();
+
+	/**
+	 * @param gcCycles the number of major collections a closed class loader may survive
+	 */
+	ClassLoaderLeakDetector(final int gcCycles) {
+		this.gcCycles = Math.max(1, gcCycles);
+
+		NotificationFilter filter = notification -> GC_NOTIFICATION.equals(notification.getType())
+				&& notification.getUserData() instanceof CompositeData;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (collector instanceof NotificationEmitter emitter) {
+				NotificationListener listener = (Notification notification, Object handback) -> {
+					CompositeData info = (CompositeData) notification.getUserData();
+					int halves = halves(String.valueOf(info.get("gcName")), String.valueOf(info.get("gcAction")));
+					if (halves > 0) {
+						halfCollections.addAndGet(halves);
+						check();
+					}
+				};
+				emitter.addNotificationListener(listener, filter, null);
+				listeners.put(emitter, listener);
+			}
+		}
+	}
+
+	/**
+	 * How much a collection counts, in halves of a major collection.
+	 *
+	 * @param collectorName the name of the collector
+	 * @param gcAction the action of the collection notification
+	 * @return 2 for a major collection, 1 for a pause of a concurrent G1 cycle, 0 if the collection is not counted
+	 */
+	static int halves(final String collectorName, final String gcAction) {
+		return switch (gcAction) {
+			case MAJOR_GC -> 2;
+			case GC_CYCLE -> collectorName.toLowerCase(Locale.ROOT).contains("minor") ? 0 : 2;
+			case CONCURRENT_GC_PAUSE -> 1;
+			default -> 0;
+		};
+	}
+
+	/**
+	 * Tracks the class loader of a module that is about to be closed.
+	 */
+	void track(final String moduleId, final String version, final ClassLoader classLoader) {
+		if (classLoader != null) {
+			tracked.add(new Tracked(moduleId, version, classLoader, queue, halfCollections.get()));
+		}
+	}
+
+	private long collectionsSince(final Tracked reference) {
+		return (halfCollections.get() - reference.closedAt) / 2;
+	}
+
+	/**
+	 * Removes the unloaded class loaders and reports the class loaders that survived too many major collections. A
+	 * leak is reported once.
+	 */
+	void check() {
+		expunge();
+		for (Tracked reference : tracked) {
+			long cycles = collectionsSince(reference);
+			if (cycles >= gcCycles && !reference.reported) {
+				reference.reported = true;
+				ModuleLeak leak = reference.leak(cycles);
+				if (leak != null) {
+					LOGGER.warn("class loader of module {} {} not unloaded after {} major collections, suspects: {}",
+							leak.moduleId(), leak.version(), cycles, leak.hints().isEmpty() ? "unknown" : leak.hints());
+				}
+			}
+		}
+	}
+
+	/**
+	 * The closed modules whose class loaders survived the configured number of major collections.
+	 */
+	List<ModuleLeak> leaks() {
+		expunge();
+		List<ModuleLeak> leaks = new ArrayList<>();
+		for (Tracked reference : tracked) {
+			long cycles = collectionsSince(reference);
+			if (cycles >= gcCycles) {
+				ModuleLeak leak = reference.leak(cycles);
+				if (leak != null) {
+					leaks.add(leak);
+				}
+			}
+		}
+		return leaks;
+	}
+
+	/**
+	 * The number of tracked class loaders that are not unloaded yet.
+	 */
+	int tracked() {
+		expunge();
+		return tracked.size();
+	}
+
+	private void expunge() {
+		Reference<? extends ClassLoader> reference;
+		while ((reference = queue.poll()) != null) {
+			Tracked unloaded = (Tracked) reference;
+			tracked.remove(unloaded);
+			LOGGER.debug("class loader of module {} {} unloaded", unloaded.moduleId, unloaded.version);
+		}
+	}
+
+	@Override
+	public void close() {
+		listeners.forEach((emitter, listener) -> {
+			try {
+				emitter.removeNotificationListener(listener);
+			} catch (ListenerNotFoundException e) {
+				// already removed
+			}
+		});
+		listeners.clear();
+		tracked.clear();
+	}
+
+	private static final class Tracked extends PhantomReference<ClassLoader> {
+
+		private final String moduleId;
+		private final String version;
+		/**
+		 * The counted half collections when the module was closed.
+		 */
+		private final long closedAt;
+
+		/**
+		 * Gives access to the class loader for the hints while it is strongly reachable, does not keep it alive.
+		 */
+		private final WeakReference<ClassLoader> loader;
+
+		private volatile boolean reported;
+
+		Tracked(final String moduleId, final String version, final ClassLoader classLoader,
+				final ReferenceQueue<ClassLoader> queue, final long closedAt) {
+			super(classLoader, queue);
+			this.moduleId = moduleId;
+			this.version = version;
+			this.closedAt = closedAt;
+			this.loader = new WeakReference<>(classLoader);
+		}
+
+		/**
+		 * @return the leak or null if the class loader is no longer strongly reachable
+		 */
+		ModuleLeak leak(final long cycles) {
+			ClassLoader classLoader = loader.get();
+			if (classLoader == null) {
+				return null;
+			}
+			List<String> hints = new ArrayList<>();
+			for (Thread thread : platformThreads()) {
+				if (thread.getContextClassLoader() == classLoader) {
+					hints.add("context class loader of thread " + thread.getName());
+				}
+				if (thread.getClass().getClassLoader() == classLoader) {
+					hints.add("running thread " + thread.getName() + " of class " + thread.getClass().getName());
+				}
+			}
+			return new ModuleLeak(moduleId, version, cycles, List.copyOf(hints));
+		}
+	}
+
+	/**
+	 * The live platform threads of all thread groups, without a safepoint to capture their stacks.
+	 */
+	static Thread[] platformThreads() {
+		ThreadGroup root = Thread.currentThread().getThreadGroup();
+		while (root.getParent() != null) {
+			root = root.getParent();
+		}
+		Thread[] threads = new Thread[root.activeCount() + 16];
+		int count;
+		// a full array may have missed threads started in the meantime
+		while ((count = root.enumerate(threads, true)) == threads.length) {
+			threads = new Thread[threads.length * 2];
+		}
+		return Arrays.copyOf(threads, count);
+	}
+}
@@ -0,0 +1,99 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.condation.modules.api.ExtensionPoint;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Copy-on-write registry of the active modules. A new snapshot is published whenever the set of active modules
+ * changes, lookups only read the current snapshot.
+ *
+ * @author thmarx
+ */
+final class ExtensionRegistry {
+
+	private static final ModuleImpl[] NO_MODULES = new ModuleImpl[0];
+
+	private volatile Snapshot snapshot = new Snapshot(NO_MODULES);
+
+	/**
+	 * Publishes a new snapshot for the given modules.
+	 *
+	 * @param activeModules the currently active modules
+	 */
+	void publish(final Collection<ModuleImpl> activeModules) {
+		this.snapshot = new Snapshot(activeModules.toArray(ModuleImpl[]::new));
+	}
+
+	/**
+	 * Returns the active modules providing the extension point.
+	 *
+	 * @param extensionClass the extension point
+	 * @return the modules providing the extension point, never null
+	 */
+	ModuleImpl[] providing(final Class<? extends ExtensionPoint> extensionClass) {
+		return snapshot.providing(extensionClass);
+	}
+
+	private static final class Snapshot {
+
+		private final ModuleImpl[] modules;
+
+		/**
+		 * Lazily filled per extension point, the content never changes during the lifetime of the snapshot.
+		 */
+		private final ConcurrentMap<Class<? extends ExtensionPoint>, ModuleImpl[]> providers = new ConcurrentHashMap<>();
+
+		private Snapshot(final ModuleImpl[] modules) {
+			this.modules = modules;
+		}
+
+		ModuleImpl[] providing(final Class<? extends ExtensionPoint> extensionClass) {
+			ModuleImpl[] result = providers.get(extensionClass);
+			if (result == null) {
+				result = resolve(extensionClass);
+				ModuleImpl[] existing = providers.putIfAbsent(extensionClass, result);
+				result = existing != null ? existing : result;
+			}
+			return result;
+		}
+
+		private ModuleImpl[] resolve(final Class<? extends ExtensionPoint> extensionClass) {
+			if (modules.length == 0) {
+				return NO_MODULES;
+			}
+			List<ModuleImpl> result = new ArrayList<>(modules.length);
+			for (ModuleImpl module : modules) {
+				if (module.provides(extensionClass)) {
+					result.add(module);
+				}
+			}
+			return result.isEmpty() ? NO_MODULES : result.toArray(ModuleImpl[]::new);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Counts the calls running in the extensions of a module without a shared hot spot. The counts are striped by thread
+ * id, every stripe has its own cache lines and holds two monotonic counters, one for started and one for finished
+ * calls. A call only writes to the stripe of its thread, so concurrent calls on different cores do not contend.
+ * 
+ * The proxies get the plain {@link AtomicLongArray}, the proxy classes are defined in the module class loader and can
+ * only use JDK types. The layout is described by the constants {@link #STRIPE_SHIFT}, {@link #STARTED} and
+ * {@link #FINISHED}.
+ * 
+ * The module is idle if the finished calls, summed first, are equal to the started calls, summed after them. A finished
+ * call always counts as started before, so a call running while the stripes are summed keeps the sums apart.
+ *
+ * @author thmarx
+ */
+final class InFlightCalls {
+
+	/**
+	 * The stripe of a thread is {@code (threadId & (stripes - 1)) << STRIPE_SHIFT}, the number of stripes is a power
+	 * of two. A stripe takes 16 longs (128 bytes), two cache lines so the adjacent line prefetch does not share them.
+	 */
+	static final int STRIPE_SHIFT = 4;
+	static final int STARTED = 0;
+	static final int FINISHED = 1;
+
+	private static final int MAX_STRIPES = 256;
+
+	private final AtomicLongArray slots;
+
+	InFlightCalls() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	InFlightCalls(final int parallelism) {
+		// at least two stripes per core, rounded up to a power of two
+		int stripes = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, parallelism) * 2 - 1) << 1);
+		this.slots = new AtomicLongArray(stripes << STRIPE_SHIFT);
+	}
+
+	/**
+	 * The slots updated by the extension proxies.
+	 */
+	AtomicLongArray slots() {
+		return slots;
+	}
+
+	/**
+	 * Counts a call of the current thread that does not go through a proxy, e.g. an extension lookup. Must be followed
+	 * by {@link #exit()} on the same thread.
+	 */
+	void enter() {
+		slots.getAndIncrement(stripe() + STARTED);
+	}
+
+	void exit() {
+		slots.getAndIncrement(stripe() + FINISHED);
+	}
+
+	/**
+	 * The stripe of the current thread, the same as in the proxies.
+	 */
+	private int stripe() {
+		return ((int) Thread.currentThread().threadId() & ((slots.length() >> STRIPE_SHIFT) - 1)) << STRIPE_SHIFT;
+	}
+
+	/**
+	 * The number of running calls, a snapshot.
+	 */
+	long count() {
+		long finished = sum(FINISHED);
+		return Math.max(0, sum(STARTED) - finished);
+	}
+
+	boolean isIdle() {
+		long finished = sum(FINISHED);
+		return sum(STARTED) == finished;
+	}
+
+	/**
+	 * Waits until no calls are running.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @return true if no calls are running, false if the timeout elapsed or the thread is interrupted
+	 */
+	boolean awaitIdle(final Duration timeout) {
+		long deadline = System.nanoTime() + timeout.toNanos();
+		while (!isIdle()) {
+			if (System.nanoTime() - deadline >= 0 || Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		return true;
+	}
+
+	private long sum(final int counter) {
+		long sum = 0;
+		for (int i = counter; i < slots.length(); i += 1 << STRIPE_SHIFT) {
+			sum += slots.get(i);
+		}
+		return sum;
+	}
+}
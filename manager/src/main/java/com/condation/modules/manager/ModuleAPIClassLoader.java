@@ -26,12 +26,10 @@ package com.condation.modules.manager;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  *
@@ -39,39 +37,42 @@ import java.util.stream.Collectors;
  */
 public class ModuleAPIClassLoader extends ClassLoader {
 
-	private final List<String> apiPackages;
+	static {
+		// holds no state of its own, loading is delegated to the parent
+		ClassLoader.registerAsParallelCapable();
+	}
+
+	private final VisibilityPolicy policy;
 
 	private final ClassLoader parent;
 
 	public ModuleAPIClassLoader(ClassLoader classLoader, List<String> apiPackages) {
+		this(classLoader, apiPackages, List.of());
+	}
+
+	/**
+	 * 
+	 * @param classLoader the classloader of the api
+	 * @param apiPackages packages visible to the modules
+	 * @param deniedPackages packages not visible to the modules, even if a parent package is an api package
+	 */
+	public ModuleAPIClassLoader(ClassLoader classLoader, List<String> apiPackages, List<String> deniedPackages) {
 		super(classLoader);
 
 		this.parent = classLoader;
-		List<String> temp = apiPackages != null ? apiPackages : new ArrayList<>();
-		this.apiPackages = temp.stream().map(c -> !c.endsWith(".") ? c + "." : c).collect(Collectors.toList());
-
-		this.apiPackages.add("com.condation.modules.api.");
-		this.apiPackages.add("java.");
-		this.apiPackages.add("javax.");
-		this.apiPackages.add("com.sun.");
-		this.apiPackages.add("sun.");
+		this.policy = VisibilityPolicy.builder()
+				.allowAll(apiPackages != null ? apiPackages : List.of())
+				.denyAll(deniedPackages != null ? deniedPackages : List.of())
+				.allow("com.condation.modules.api.")
+				.allow("java.")
+				.allow("javax.")
+				.allow("com.sun.")
+				.allow("sun.")
+				.build();
 	}
 
 	boolean isAllowed(final String name) {
-		for (String packageName : apiPackages) {
-			if (name.startsWith(packageName)) {
-				return true;
-			}
-
-			String tempname = packageName.replaceAll("\\.", "/");
-			if (name.startsWith("/")) {
-				tempname = "/" + tempname;
-			}
-			if (name.startsWith(tempname)) {
-				return true;
-			}
-		}
-		return false;
+		return policy.isAllowed(name);
 	}
 
 	@Override
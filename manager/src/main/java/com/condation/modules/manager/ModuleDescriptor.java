@@ -0,0 +1,147 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2026 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.condation.modules.api.Module.Priority;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The metadata of a module, read from the module.properties of the module directory or module archive.
+ *
+ * @author thmarx
+ */
+public record ModuleDescriptor(File moduleDir, String id, String name, String version, String description, String author,
+		Priority priority, List<ModuleImpl.Dependency> dependencies) {
+
+	public static final String MODULE_PROPERTIES = "module.properties";
+
+	/**
+	 * The file extension of single file module archives. An archive is a zip with the module.properties and the jars
+	 * in libs/, it is read in place.
+	 */
+	public static final String ARCHIVE_EXTENSION = ".module";
+
+	/**
+	 * Reads the descriptor of the module in the given directory or archive.
+	 * 
+	 * @param moduleDir the module directory or module archive
+	 * @return the descriptor
+	 * @throws IOException if the module.properties can not be read
+	 */
+	public static ModuleDescriptor read(final File moduleDir) throws IOException {
+		Properties properties = new Properties();
+		if (isArchive(moduleDir)) {
+			try (ZipFile archive = new ZipFile(moduleDir)) {
+				ZipEntry entry = archive.getEntry(MODULE_PROPERTIES);
+				if (entry == null) {
+					throw new IOException("no " + MODULE_PROPERTIES + " in " + moduleDir);
+				}
+				try (Reader reader = new InputStreamReader(archive.getInputStream(entry))) {
+					properties.load(reader);
+				}
+			}
+		} else {
+			try (FileReader reader = new FileReader(new File(moduleDir, MODULE_PROPERTIES))) {
+				properties.load(reader);
+			}
+		}
+		return of(moduleDir, properties);
+	}
+
+	/**
+	 * Returns true if the file is a single file module archive.
+	 * 
+	 * @param file the file
+	 * @return true for module archives
+	 */
+	public static boolean isArchive(final File file) {
+		return file.getName().endsWith(ARCHIVE_EXTENSION) && file.isFile();
+	}
+
+	/**
+	 * The file the descriptor is read from, the module.properties of a directory or the archive itself.
+	 */
+	static File descriptorFile(final File moduleDir) {
+		return isArchive(moduleDir) ? moduleDir : new File(moduleDir, MODULE_PROPERTIES);
+	}
+
+	/**
+	 * Returns the descriptor as properties in the format of the module.properties.
+	 * 
+	 * @return the properties
+	 */
+	Properties toProperties() {
+		Properties properties = new Properties();
+		putIfNotNull(properties, "id", id);
+		putIfNotNull(properties, "name", name);
+		putIfNotNull(properties, "version", version);
+		putIfNotNull(properties, "description", description);
+		putIfNotNull(properties, "author", author);
+		properties.setProperty("priority", priority.name());
+		if (!dependencies.isEmpty()) {
+			properties.setProperty("dependencies", dependencies.stream()
+					.map(dependency -> dependency.id() + "#" + dependency.version())
+					.collect(Collectors.joining(";")));
+		}
+		return properties;
+	}
+
+	private static void putIfNotNull(final Properties properties, final String key, final String value) {
+		if (value != null) {
+			properties.setProperty(key, value);
+		}
+	}
+
+	static ModuleDescriptor of(final File moduleDir, final Properties properties) {
+		List<ModuleImpl.Dependency> dependencyList = new ArrayList<>();
+		String dependencies = properties.getProperty("dependencies");
+		if (dependencies != null && !dependencies.equals("")) {
+			for (String dep : dependencies.split(";")) {
+				String[] dependency = dep.split("#");
+				if (dependency != null && dependency.length == 2) {
+					dependencyList.add(new ModuleImpl.Dependency(dependency[0], dependency[1]));
+				}
+			}
+		}
+		String config_prio = properties.getProperty("priority", "NORMAL");
+		return new ModuleDescriptor(moduleDir,
+				properties.getProperty("id"),
+				properties.getProperty("name"),
+				properties.getProperty("version"),
+				properties.getProperty("description"),
+				properties.getProperty("author"),
+				Priority.valueOf(config_prio),
+				Collections.unmodifiableList(dependencyList));
+	}
+}
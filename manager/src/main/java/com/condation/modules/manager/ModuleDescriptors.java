@@ -0,0 +1,301 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2026 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The descriptors of all modules in the modules path, keyed by the name of the module directory. The table is shared by
+ * discovery, initialization and activation, so every module.properties is parsed only once.
+ * 
+ * Module archives are keyed by their file name. Every descriptor is stored with the size and modification time of its
+ * module.properties (or of the archive) and is only parsed again if the fingerprint changes. Fingerprints are only
+ * checked by {@link #discover()} and {@link #refresh(String)}, queries for known modules are served from memory without
+ * touching the disk. Optionally the table is persisted in the modules data path, so warm restarts skip parsing.
+ *
+ * @author thmarx
+ */
+final class ModuleDescriptors {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ModuleDescriptors.class);
+
+	static final String CACHE_FILE = "module-descriptors.cache";
+
+	private static final int CACHE_MAGIC = 0x434D4443;
+
+	private static final int CACHE_VERSION = 1;
+
+	private final File modulesPath;
+
+	/**
+	 * The cache file or null if the cache is not persisted.
+	 */
+	private final Path cacheFile;
+
+	private final ConcurrentMap<String, Entry> descriptors = new ConcurrentHashMap<>();
+
+	private volatile boolean dirty = false;
+
+	ModuleDescriptors(final File modulesPath) {
+		this(modulesPath, null);
+	}
+
+	/**
+	 * @param modulesPath the modules path
+	 * @param modulesDataPath the data path to persist the cache in or null
+	 */
+	ModuleDescriptors(final File modulesPath, final File modulesDataPath) {
+		this.modulesPath = modulesPath;
+		this.cacheFile = modulesDataPath != null ? modulesDataPath.toPath().resolve(CACHE_FILE) : null;
+		if (cacheFile != null) {
+			loadCache();
+		}
+	}
+
+	/**
+	 * Scans the modules path. Descriptors of new or changed module directories are read in parallel, descriptors of
+	 * removed directories are dropped.
+	 *
+	 * @return the errors of module directories that could not be read, by directory name
+	 */
+	Map<String, IOException> discover() {
+		File[] moduleFiles = modulesPath.listFiles((File file) -> file.isDirectory() || ModuleDescriptor.isArchive(file));
+		if (moduleFiles == null) {
+			descriptors.clear();
+			return Map.of();
+		}
+
+		Set<String> present = new HashSet<>();
+		for (File moduleFile : moduleFiles) {
+			present.add(moduleFile.getName());
+		}
+		if (descriptors.keySet().retainAll(present)) {
+			dirty = true;
+		}
+
+		Map<String, IOException> errors = new LinkedHashMap<>();
+		// reading is dominated by file io, virtual threads keep the carriers busy
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			Map<File, Future<Entry>> futures = new LinkedHashMap<>();
+			for (File moduleDir : moduleFiles) {
+				futures.put(moduleDir, executor.submit(() -> current(moduleDir)));
+			}
+
+			for (Map.Entry<File, Future<Entry>> future : futures.entrySet()) {
+				String directory = future.getKey().getName();
+				try {
+					future.getValue().get();
+				} catch (ExecutionException ee) {
+					if (descriptors.remove(directory) != null) {
+						dirty = true;
+					}
+					errors.put(directory, ee.getCause() instanceof IOException ioe ? ioe : new IOException(ee.getCause()));
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					errors.put(directory, new IOException(ie));
+				}
+			}
+		}
+		storeCache();
+		return errors;
+	}
+
+	/**
+	 * Returns the descriptor of a module directory. A known descriptor is returned as is, only an unknown one is read.
+	 *
+	 * @param directory the name of the module directory
+	 * @return the descriptor
+	 * @throws IOException if the descriptor can not be read
+	 */
+	ModuleDescriptor get(final String directory) throws IOException {
+		Entry entry = descriptors.get(directory);
+		if (entry != null) {
+			return entry.descriptor();
+		}
+		return refresh(directory);
+	}
+
+	/**
+	 * Returns the up to date descriptor of a module directory, reading it if it is unknown or the module.properties
+	 * has changed. Used when a module is (re)loaded from disk.
+	 *
+	 * @param directory the name of the module directory
+	 * @return the descriptor
+	 * @throws IOException if the descriptor can not be read
+	 */
+	ModuleDescriptor refresh(final String directory) throws IOException {
+		Entry entry;
+		try {
+			entry = current(new File(modulesPath, directory));
+		} catch (IOException | RuntimeException e) {
+			if (descriptors.remove(directory) != null) {
+				dirty = true;
+			}
+			storeCache();
+			throw e;
+		}
+		storeCache();
+		return entry.descriptor();
+	}
+
+	/**
+	 * Removes the descriptor of a module directory that no longer exists.
+	 *
+	 * @param directory the name of the module directory
+	 */
+	void remove(final String directory) {
+		if (descriptors.remove(directory) != null) {
+			dirty = true;
+			storeCache();
+		}
+	}
+
+	/**
+	 * Returns all known descriptors.
+	 *
+	 * @return the descriptors
+	 */
+	Collection<ModuleDescriptor> all() {
+		return descriptors.values().stream().map(Entry::descriptor).toList();
+	}
+
+	/**
+	 * Returns the up to date entry of the module directory, the module.properties is only parsed if the fingerprint
+	 * has changed.
+	 */
+	private Entry current(final File moduleDir) throws IOException {
+		Fingerprint fingerprint = Fingerprint.of(ModuleDescriptor.descriptorFile(moduleDir).toPath());
+		Entry entry = descriptors.get(moduleDir.getName());
+		if (entry == null || !entry.fingerprint().equals(fingerprint)) {
+			entry = new Entry(ModuleDescriptor.read(moduleDir), fingerprint);
+			descriptors.put(moduleDir.getName(), entry);
+			dirty = true;
+		}
+		return entry;
+	}
+
+	private void loadCache() {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+			if (in.readInt() != CACHE_MAGIC || in.readShort() != CACHE_VERSION) {
+				LOGGER.info("ignore module descriptor cache with unknown format");
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String directory = in.readUTF();
+				Fingerprint fingerprint = new Fingerprint(in.readLong(), in.readLong());
+				Properties properties = new Properties();
+				int size = in.readInt();
+				for (int j = 0; j < size; j++) {
+					properties.setProperty(in.readUTF(), in.readUTF());
+				}
+				File moduleDir = new File(modulesPath, directory);
+				descriptors.put(directory, new Entry(ModuleDescriptor.of(moduleDir, properties), fingerprint));
+			}
+		} catch (NoSuchFileException nsfe) {
+			// no cache yet
+		} catch (IOException | IllegalArgumentException e) {
+			LOGGER.warn("could not read module descriptor cache", e);
+			descriptors.clear();
+		}
+	}
+
+	private void storeCache() {
+		if (cacheFile == null || !dirty) {
+			return;
+		}
+		synchronized (this) {
+			if (dirty) {
+				dirty = false;
+				writeCache();
+			}
+		}
+	}
+
+	private void writeCache() {
+		try {
+			Files.createDirectories(cacheFile.getParent());
+			Path temp = Files.createTempFile(cacheFile.getParent(), CACHE_FILE, ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				List<Map.Entry<String, Entry>> entries = new ArrayList<>(descriptors.entrySet());
+				out.writeInt(CACHE_MAGIC);
+				out.writeShort(CACHE_VERSION);
+				out.writeInt(entries.size());
+				for (Map.Entry<String, Entry> entry : entries) {
+					out.writeUTF(entry.getKey());
+					out.writeLong(entry.getValue().fingerprint().size());
+					out.writeLong(entry.getValue().fingerprint().lastModified());
+					Properties properties = entry.getValue().descriptor().toProperties();
+					out.writeInt(properties.size());
+					for (String key : properties.stringPropertyNames()) {
+						out.writeUTF(key);
+						out.writeUTF(properties.getProperty(key));
+					}
+				}
+			}
+			Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.warn("could not write module descriptor cache", e);
+		}
+	}
+
+	private record Entry(ModuleDescriptor descriptor, Fingerprint fingerprint) {
+	}
+
+	/**
+	 * Size and modification time of the module.properties or module archive.
+	 */
+	record Fingerprint(long size, long lastModified) {
+
+		static Fingerprint of(final Path file) throws IOException {
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			return new Fingerprint(attributes.size(), attributes.lastModifiedTime().toMillis());
+		}
+	}
+}
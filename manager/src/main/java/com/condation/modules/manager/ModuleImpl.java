@@ -26,23 +26,33 @@ import com.condation.modules.api.ExtensionPoint;
 import com.condation.modules.api.Module;
 import com.condation.modules.api.Module.Priority;
 import com.condation.modules.api.ModuleConfiguration;
+import com.condation.modules.api.ModuleRequestContext;
 import com.condation.modules.api.ModuleRequestContextFactory;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.net.JarURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Properties;
-import java.util.ServiceLoader;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
@@ -50,6 +60,8 @@ import java.util.concurrent.ConcurrentMap;
  */
 public class ModuleImpl implements Module {
 
+	private static final Logger LOGGER = LoggerFactory.getLogger(ModuleImpl.class);
+
 	private String id;
 	private String version;
 	private String name;
@@ -63,62 +75,112 @@ public class ModuleImpl implements Module {
 
 	File modulesDataDir;
 
-	URLClassLoader classloader;
+	volatile URLClassLoader classloader;
 
-	ModuleConfiguration configuration;
+	volatile ModuleConfiguration configuration;
 
 	private final Context context;
 	private final ModuleInjector injector;
 
 	Map<Class, List> extensions = new HashMap<>();
 
-	private ModuleServiceLoader moduleServiceLoader;
+	private volatile ModuleServiceLoader moduleServiceLoader;
+
+	private volatile ClassLoaderInterceptor interceptor;
+
+	/**
+	 * Extensions with scope singleton, cleared when the module is closed.
+	 */
+	private final ConcurrentMap<ModuleServiceLoader.Provider<?>, ExtensionPoint> singletons = new ConcurrentHashMap<>();
+
+	/**
+	 * Guards the creation of the singletons. A lock instead of the monitor of the provider, a virtual thread waiting
+	 * for a singleton or running its init() does not pin the carrier thread.
+	 */
+	private final ConcurrentMap<ModuleServiceLoader.Provider<?>, ReentrantLock> singletonLocks = new ConcurrentHashMap<>();
+
+	/**
+	 * Calls running in the extensions of this module, counted by the extension proxies, and running extension lookups.
+	 */
+	private final InFlightCalls inFlight = new InFlightCalls();
+
+	/**
+	 * The extension points provided by the module, read from the module jars by {@link #prepare(ModuleAPIClassLoader, boolean)}.
+	 * Null if the module is initialized eagerly.
+	 */
+	private volatile Set<String> contracts;
 
-	private ClassLoaderInterceptor interceptor;
+	private ModuleAPIClassLoader parentClassLoader;
+
+	/**
+	 * Read the module jars from a memory mapping, set by {@link #prepare(ModuleAPIClassLoader, boolean)}.
+	 */
+	private boolean mapJars;
+
+	private volatile boolean initialized;
+
+	/**
+	 * Guards the lazy initialization and close. A lock instead of the monitor of the module, a virtual thread creating
+	 * the class loader on the first lookup does not pin the carrier thread.
+	 */
+	private final ReentrantLock lifecycleLock = new ReentrantLock();
+
+	private volatile boolean closed;
+
+	/**
+	 * Set when the module waits for its running calls before it is closed, new extension lookups return no extensions.
+	 */
+	private volatile boolean draining;
 
 	protected ModuleImpl(final File moduleDir, final File modulesDataDir, final Context context,
 			final ModuleInjector injector, final ModuleRequestContextFactory requestContextFactory) throws MalformedURLException, IOException {
-		this.moduleDir = moduleDir;
+		this(ModuleDescriptor.read(moduleDir), modulesDataDir, context, injector, requestContextFactory);
+	}
+
+	protected ModuleImpl(final ModuleDescriptor descriptor, final File modulesDataDir, final Context context,
+			final ModuleInjector injector, final ModuleRequestContextFactory requestContextFactory) {
+		this.moduleDir = descriptor.moduleDir();
 		this.modulesDataDir = modulesDataDir;
 		this.context = context;
 		this.injector = injector;
 		this.requestContextFactory = requestContextFactory;
 
-		Properties properties = new Properties();
-		try (FileReader reader = new FileReader(new File(moduleDir, "module.properties"))) {
-			properties.load(reader);
-			this.id = properties.getProperty("id");
-			this.name = properties.getProperty("name");
-			this.version = properties.getProperty("version");
-			this.description = properties.getProperty("description");
-			this.author = properties.getProperty("author");
-			String dependencies = properties.getProperty("dependencies");
-			if (dependencies != null && !dependencies.equals("")) {
-				for (String dep : dependencies.split(";")) {
-					String[] dependency = dep.split("#");
-					if (dependency != null && dependency.length == 2) {
-						dependencyList.add(new Dependency(dependency[0], dependency[1]));
-					}
-				}
-			}
-			String config_prio = properties.getProperty("priority", "NORMAL");
-			this.priority = Priority.valueOf(config_prio);
-		}
+		this.id = descriptor.id();
+		this.name = descriptor.name();
+		this.version = descriptor.version();
+		this.description = descriptor.description();
+		this.author = descriptor.author();
+		this.dependencyList.addAll(descriptor.dependencies());
+		this.priority = descriptor.priority();
 	}
 
 	public void init(final ModuleAPIClassLoader parentClassLoader) throws MalformedURLException, IOException {
-		List<URL> urls = new ArrayList<>();
+		init(parentClassLoader, false);
+	}
 
-		File[] libs = new File(moduleDir, "libs").listFiles((File dir, String name1) -> name1.endsWith(".jar"));
-		for (File lib : libs) {
-			urls.add(new URL("jar:" + lib.toURI().toURL() + "!/"));
-			lib = null;
-		}
+	/**
+	 * @param parentClassLoader the parent of the module class loader
+	 * @param mapJars true to read the module jars from a memory mapping instead of the URLClassLoader
+	 */
+	void init(final ModuleAPIClassLoader parentClassLoader, final boolean mapJars) throws MalformedURLException, IOException {
+		if (ModuleDescriptor.isArchive(moduleDir)) {
+			classloader = ModuledFirstURLClassLoader.forArchive(moduleDir, parentClassLoader, mapJars);
+		} else {
+			List<URL> urls = new ArrayList<>();
+
+			File[] libs = new File(moduleDir, "libs").listFiles((File dir, String name1) -> name1.endsWith(".jar"));
+			// a stable class path, the order of listFiles is not specified
+			Arrays.sort(libs, Comparator.comparing(File::getName));
+			for (File lib : libs) {
+				urls.add(new URL("jar:" + lib.toURI().toURL() + "!/"));
+				lib = null;
+			}
 
-		classloader = new ModuledFirstURLClassLoader(urls.toArray(new URL[libs.length]), parentClassLoader);
-		urls.clear();
-		urls = null;
-		libs = null;
+			classloader = new ModuledFirstURLClassLoader(urls.toArray(new URL[libs.length]), parentClassLoader, mapJars);
+			urls.clear();
+			urls = null;
+			libs = null;
+		}
 
 		File dataDir = new File(modulesDataDir, id);
 		if (!dataDir.exists()) {
@@ -126,42 +188,244 @@ public class ModuleImpl implements Module {
 		}
 		this.configuration = new ModuleConfiguration(dataDir);
 
-		this.moduleServiceLoader = ModuleServiceLoader.create(classloader);
+		this.moduleServiceLoader = ModuleServiceLoader.createLocal(classloader);
 		this.interceptor = new ClassLoaderInterceptor(classloader);
+		this.initialized = true;
+	}
+
+	/**
+	 * Prepares the module for lazy initialization. Only the extension indexes and service files of the module jars are
+	 * read, the class loader is created on the first lookup of an extension the module provides.
+	 *
+	 * @param parentClassLoader the parent of the module class loader
+	 * @param mapJars true to read the module jars from a memory mapping
+	 * @return true if the module can be initialized lazily, false if the module jars can not be read
+	 */
+	boolean prepare(final ModuleAPIClassLoader parentClassLoader, final boolean mapJars) {
+		Set<String> provided = new HashSet<>();
+		try {
+			if (ModuleDescriptor.isArchive(moduleDir)) {
+				// the nested jars are streamed from the archive, not opened as jars
+				try (ZipFile archive = new ZipFile(moduleDir)) {
+					Enumeration<? extends ZipEntry> entries = archive.entries();
+					while (entries.hasMoreElements()) {
+						ZipEntry lib = entries.nextElement();
+						String name = lib.getName();
+						if (name.startsWith("libs/") && name.endsWith(".jar") && name.indexOf('/', "libs/".length()) == -1) {
+							try (JarInputStream jar = new JarInputStream(archive.getInputStream(lib), false)) {
+								ModuleServiceLoader.readContracts(jar, provided);
+							}
+						}
+					}
+				}
+			} else {
+				File[] libs = new File(moduleDir, "libs").listFiles((File dir, String name1) -> name1.endsWith(".jar"));
+				if (libs == null) {
+					LOGGER.warn("module {} has no readable libs directory, it is initialized on activation", id);
+					return false;
+				}
+				for (File lib : libs) {
+					try (JarFile jar = new JarFile(lib, false)) {
+						ModuleServiceLoader.readContracts(jar, provided);
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("can not read the extension indexes of module {}, it is initialized on activation", id, e);
+			return false;
+		}
+		this.parentClassLoader = parentClassLoader;
+		this.mapJars = mapJars;
+		this.contracts = provided;
+		return true;
+	}
+
+	boolean isInitialized() {
+		return initialized;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Initializes a prepared module on first use. A module that can not be initialized is closed, it provides no
+	 * extensions until it is reloaded.
+	 *
+	 * @return false if the module is closed
+	 */
+	private boolean ensureInitialized() {
+		if (initialized) {
+			return true;
+		}
+		lifecycleLock.lock();
+		try {
+			if (closed) {
+				return false;
+			}
+			if (!initialized) {
+				try {
+					init(parentClassLoader, mapJars);
+				} catch (IOException | RuntimeException e) {
+					LOGGER.error("can not initialize module {}, the module is closed", id, e);
+					try {
+						close();
+					} catch (IOException ex) {
+						LOGGER.warn("error closing module {}", id, ex);
+					}
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			lifecycleLock.unlock();
+		}
 	}
 
 	@Override
 	public boolean provides(Class<? extends ExtensionPoint> extensionClass) {
-		ServiceLoader<? extends ExtensionPoint> serviceLoader = ServiceLoader.load(extensionClass, classloader);
-		return serviceLoader.iterator().hasNext();
+		if (closed) {
+			return false;
+		}
+		if (!initialized) {
+			Set<String> provided = contracts;
+			return provided != null && provided.contains(extensionClass.getName());
+		}
+		ModuleServiceLoader serviceLoader = moduleServiceLoader;
+		return serviceLoader != null && !serviceLoader.providers(extensionClass).isEmpty();
 	}
 
 	@Override
 	public <T extends ExtensionPoint> List<T> extensions(Class<T> extensionClass) {
+		return extensions(extensionClass, createRequestContext());
+	}
 
-		return moduleServiceLoader.get(extensionClass).stream()
-				.map(ext -> {
-					try {
-						// Proxy erstellen, das alle Methoden mit ThreadClassLoader umhüllt
-						T proxy = interceptor.createProxy(extensionClass, classloader, ext);
+	/**
+	 * Returns the extensions for the given request. The request context is resolved once by the caller, request scoped
+	 * extensions are stored in its {@link ModuleRequestContext#requestScopedExtensions()}.
+	 *
+	 * @param extensionClass the extension point
+	 * @param requestContext the context of the current request or null
+	 * @return the extensions, empty if the module is closed
+	 */
+	<T extends ExtensionPoint> List<T> extensions(final Class<T> extensionClass, final ModuleRequestContext requestContext) {
+		// the lookup counts as running call, the module is not closed while the extensions are created
+		inFlight.enter();
+		try {
+			if (draining || closed || !initialized && (!provides(extensionClass) || !ensureInitialized())) {
+				return List.of();
+			}
+			// read once, close() clears the fields when the module is closed without draining
+			Loaded loaded = new Loaded(moduleServiceLoader, interceptor, classloader, configuration);
+			if (loaded.serviceLoader() == null || loaded.interceptor() == null || loaded.classLoader() == null) {
+				return List.of();
+			}
 
-						proxy.setContext(context);
-						proxy.setConfiguration(configuration);
+			return loaded.serviceLoader().providers(extensionClass).stream()
+					.map(provider -> scopedExtension(extensionClass, provider, requestContext, loaded))
+					.filter(Objects::nonNull)
+					.toList();
+		} finally {
+			inFlight.exit();
+		}
+	}
 
-						if (requestContextFactory != null) {
-							proxy.setRequestContext(requestContextFactory.createContext());
+	private <T extends ExtensionPoint> T scopedExtension(final Class<T> extensionClass, final ModuleServiceLoader.Provider<?> provider,
+			final ModuleRequestContext requestContext, final Loaded loaded) {
+		switch (provider.scope()) {
+			case SINGLETON -> {
+				ExtensionPoint singleton = singletons.get(provider);
+				if (singleton == null) {
+					// not created inside computeIfAbsent, init() of the extension may lookup other extensions
+					ReentrantLock lock = singletonLocks.computeIfAbsent(provider, key -> new ReentrantLock());
+					// the lock is reentrant, a lookup from init() of the singleton itself would create a second instance
+					if (lock.isHeldByCurrentThread()) {
+						throw new IllegalStateException("singleton extension " + provider.type().getName()
+								+ " is looked up from its own init()");
+					}
+					lock.lock();
+					try {
+						singleton = singletons.get(provider);
+						if (singleton == null) {
+							singleton = createExtension(extensionClass, provider, null, loaded);
+							if (singleton != null && !closed) {
+								singletons.put(provider, singleton);
+							}
 						}
+					} finally {
+						lock.unlock();
+					}
+				}
+				return extensionClass.cast(singleton);
+			}
+			case REQUEST -> {
+				ConcurrentMap<Object, Object> requestScope = requestContext != null ? requestContext.requestScopedExtensions() : null;
+				if (requestScope == null) {
+					return createExtension(extensionClass, provider, requestContext, loaded);
+				}
+				Object scoped = requestScope.get(provider);
+				if (scoped == null) {
+					scoped = createExtension(extensionClass, provider, requestContext, loaded);
+					if (scoped != null) {
+						Object existing = requestScope.putIfAbsent(provider, scoped);
+						scoped = existing != null ? existing : scoped;
+					}
+				}
+				return extensionClass.cast(scoped);
+			}
+			default -> {
+				return createExtension(extensionClass, provider, requestContext, loaded);
+			}
+		}
+	}
 
-						if (injector != null) {
-							injector.inject(proxy);
-						}
+	private ModuleRequestContext createRequestContext() {
+		return requestContextFactory != null ? requestContextFactory.createContext() : null;
+	}
 
-						proxy.init();
-						return proxy;
-					} catch (Exception e) {
-						throw new RuntimeException("Failed to create classloader proxy for extension", e);
-					}
-				}).toList();
+	/**
+	 * @return the extension or null if it can not be created or the module is closed
+	 */
+	private <T extends ExtensionPoint> T createExtension(final Class<T> extensionClass, final ModuleServiceLoader.Provider<?> provider,
+			final ModuleRequestContext requestContext, final Loaded loaded) {
+		if (closed) {
+			return null;
+		}
+		Object ext = loaded.serviceLoader().newInstance(provider);
+		if (ext == null) {
+			return null;
+		}
+		try {
+			T target = extensionClass.cast(ext);
+			// Proxy erstellen, das alle Methoden mit ThreadClassLoader umhüllt
+			T proxy = provider.proxy() 
+					? loaded.interceptor().createProxy(extensionClass, loaded.classLoader(), target, inFlight.slots())
+					: target;
+
+			proxy.setContext(context);
+			proxy.setConfiguration(loaded.configuration());
+
+			if (requestContext != null) {
+				proxy.setRequestContext(requestContext);
+			}
+
+			if (injector != null) {
+				// the proxy has no state of its own, inject into the target
+				injector.inject(target);
+			}
+
+			proxy.init();
+			return proxy;
+		} catch (Exception e) {
+			throw new RuntimeException("Failed to create classloader proxy for extension", e);
+		}
+	}
+
+	/**
+	 * The state of an initialized module, read once per lookup.
+	 */
+	private record Loaded(ModuleServiceLoader serviceLoader, ClassLoaderInterceptor interceptor, URLClassLoader classLoader,
+			ModuleConfiguration configuration) {
 	}
 
 	@Override
@@ -251,24 +515,53 @@ public class ModuleImpl implements Module {
 		return true;
 	}
 
-	public void close() throws IOException {
-		this.classloader.close();
+	/**
+	 * Stops new extension lookups and waits until no lookups and no calls are running in the proxied extensions of this
+	 * module. Extensions created without proxy are not tracked.
+	 * 
+	 * A lookup counts itself before it checks for draining, the drain is set before the counts are read: either the
+	 * lookup sees the drain and returns no extensions, or the drain sees the lookup and waits for it.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @return true if no calls are running, false if the timeout elapsed or the thread is interrupted
+	 */
+	boolean awaitIdle(final Duration timeout) {
+		draining = true;
+		return inFlight.awaitIdle(timeout);
+	}
 
-		// workaround: close all libs manually: see https://bugs.openjdk.java.net/browse/JDK-7183373
-		for (URL u : this.classloader.getURLs()) {
-			if (u.getProtocol().equals("jar")) {
-				((JarURLConnection) u.openConnection()).getJarFile().close();
+	long inFlight() {
+		return inFlight.count();
+	}
+
+	public void close() throws IOException {
+		lifecycleLock.lock();
+		try {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			// releases the module jars, a lazy module may never have been initialized
+			if (this.classloader != null) {
+				this.classloader.close();
 			}
-		}
 
-		this.classloader = null;
-		this.interceptor = null;
-		this.configuration = null;
-		this.dependencyList.clear();
-		this.extensions.clear();
-		this.extensions = null;
-		this.modulesDataDir = null;
-		this.moduleDir = null;
+			this.singletons.clear();
+			this.singletonLocks.clear();
+			this.classloader = null;
+			this.moduleServiceLoader = null;
+			this.interceptor = null;
+			this.configuration = null;
+			this.dependencyList.clear();
+			this.extensions.clear();
+			this.extensions = null;
+			this.modulesDataDir = null;
+			this.moduleDir = null;
+			this.contracts = null;
+			this.parentClassLoader = null;
+		} finally {
+			lifecycleLock.unlock();
+		}
 	}
 
 	public static class Dependency {
@@ -0,0 +1,792 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A jar that is read from a memory mapping or by positional reads from the file. The central directory is parsed once
+ * into a name index, class bytes and resources are read on demand, only the index is kept on the heap. Nothing is
+ * copied or extracted to disk.
+ * 
+ * A mapped jar ({@link #open(File)}) must not be modified while it is open, the JVM crashes with SIGBUS when a page of
+ * a truncated file is read. Jars that may be modified are read with {@link #openFile(File)}, a change in place makes
+ * reads fail with an IOException. Updates should replace the file, e.g. by an atomic move, the open jar keeps reading
+ * the replaced file.
+ * 
+ * The mapping or file is released when the jar is closed, reads after close fail with an IOException. Resource URLs
+ * copy the entry when they are opened, so an open stream stays valid after close.
+ * 
+ * Signed jars and zip64 archives are not supported, opening them fails and the caller has to fall back
+ * to the JDK jar handling.
+ *
+ * @author thmarx
+ */
+final class ModuleJar implements Closeable {
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int END_SIZE = 22;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+	private static final String VERSIONS_PREFIX = "META-INF/versions/";
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+
+	/**
+	 * Reads the content of an entry without copying it.
+	 *
+	 * @param <T> the result type
+	 */
+	@FunctionalInterface
+	interface EntryReader<T> {
+
+		/**
+		 * @param content the content of the entry, only valid during the call
+		 */
+		T read(ByteBuffer content) throws IOException;
+	}
+
+	private final URL location;
+
+	/**
+	 * The URL prefix of the entries.
+	 */
+	private final String entryPrefix;
+
+	private final Source source;
+
+	/**
+	 * Entry name to the index of the entry, versioned entries of a multi release jar are registered under their base
+	 * name.
+	 */
+	private final Map<String, Integer> index;
+	private final int[] localHeaderOffsets;
+	private final int[] compressedSizes;
+	private final int[] sizes;
+	private final short[] methods;
+
+	private final Manifest manifest;
+
+	private final Set<String> packages;
+
+	private final URLStreamHandler handler = new EntryHandler();
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private boolean closed = false;
+
+	/**
+	 * Maps the jar file.
+	 *
+	 * @param file the jar
+	 * @return the jar
+	 * @throws IOException if the jar can not be mapped or is not supported
+	 */
+	static ModuleJar open(final File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("jar too large to map: " + file);
+			}
+			MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			try {
+				return new ModuleJar(file.toURI().toURL(), new BufferSource(mapping, () -> unmap(mapping)));
+			} catch (IOException | RuntimeException e) {
+				unmap(mapping);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Opens the jar for positional reads, without a mapping. Only the central directory is read when the jar is opened.
+	 *
+	 * @param file the jar
+	 * @return the jar
+	 * @throws IOException if the jar can not be read or is not supported
+	 */
+	static ModuleJar openFile(final File file) throws IOException {
+		FileSource source = new FileSource(file.toPath());
+		try {
+			return new ModuleJar(file.toURI().toURL(), source);
+		} catch (IOException | RuntimeException e) {
+			source.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param location the location of the jar, used as code source
+	 * @param source the content of the jar, closed when the jar is closed
+	 * @throws IOException if the jar is not supported
+	 */
+	private ModuleJar(final URL location, final Source source) throws IOException {
+		this.location = location;
+		this.entryPrefix = "jar:" + location + "!/";
+		this.source = source;
+
+		int end = findEnd();
+		ByteBuffer endRecord = source.read(end, END_SIZE);
+		int count = Short.toUnsignedInt(endRecord.getShort(10));
+		long directorySize = Integer.toUnsignedLong(endRecord.getInt(12));
+		long directoryOffset = Integer.toUnsignedLong(endRecord.getInt(16));
+		if (count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL
+				|| directoryOffset + directorySize > end) {
+			throw new IOException("zip64 or invalid central directory: " + location);
+		}
+		// only the central directory is read, it is dropped after parsing
+		ByteBuffer directory = source.read((int) directoryOffset, (int) directorySize);
+
+		this.index = new HashMap<>(count * 4 / 3 + 1);
+		this.localHeaderOffsets = new int[count];
+		this.compressedSizes = new int[count];
+		this.sizes = new int[count];
+		this.methods = new short[count];
+
+		Map<String, Integer> versioned = new HashMap<>();
+		Map<String, Integer> versions = new HashMap<>();
+		int feature = Runtime.version().feature();
+
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			if (position + CENTRAL_HEADER_SIZE > directory.limit() || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+				throw new IOException("invalid central directory: " + location);
+			}
+			int method = Short.toUnsignedInt(directory.getShort(position + 10));
+			long compressedSize = Integer.toUnsignedLong(directory.getInt(position + 20));
+			long size = Integer.toUnsignedLong(directory.getInt(position + 24));
+			int nameLength = Short.toUnsignedInt(directory.getShort(position + 28));
+			int extraLength = Short.toUnsignedInt(directory.getShort(position + 30));
+			int commentLength = Short.toUnsignedInt(directory.getShort(position + 32));
+			long localHeaderOffset = Integer.toUnsignedLong(directory.getInt(position + 42));
+			if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) {
+				throw new IOException("zip64 entries are not supported: " + location);
+			}
+			if (position + CENTRAL_HEADER_SIZE + nameLength > directory.limit()) {
+				throw new IOException("invalid central directory: " + location);
+			}
+			String name = string(directory, position + CENTRAL_HEADER_SIZE, nameLength);
+			if (isSignature(name)) {
+				throw new IOException("signed jars are not supported: " + location);
+			}
+
+			localHeaderOffsets[i] = (int) localHeaderOffset;
+			compressedSizes[i] = (int) compressedSize;
+			sizes[i] = (int) size;
+			methods[i] = (short) method;
+			index.putIfAbsent(name, i);
+
+			if (name.startsWith(VERSIONS_PREFIX)) {
+				// META-INF/versions/<version>/<name>
+				int slash = name.indexOf('/', VERSIONS_PREFIX.length());
+				if (slash > 0) {
+					try {
+						int version = Integer.parseInt(name.substring(VERSIONS_PREFIX.length(), slash));
+						String baseName = name.substring(slash + 1);
+						if (version <= feature && !baseName.isEmpty() && version > versions.getOrDefault(baseName, 0)) {
+							versions.put(baseName, version);
+							versioned.put(baseName, i);
+						}
+					} catch (NumberFormatException nfe) {
+						// not a versioned entry
+					}
+				}
+			}
+			position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+
+		this.manifest = readManifest();
+		if (manifest != null && "true".equalsIgnoreCase(manifest.getMainAttributes().getValue(Attributes.Name.MULTI_RELEASE))) {
+			index.putAll(versioned);
+		}
+
+		Set<String> classPackages = new HashSet<>();
+		for (String name : index.keySet()) {
+			if (name.endsWith(".class") && !name.startsWith("META-INF/")) {
+				int lastSlash = name.lastIndexOf('/');
+				classPackages.add(lastSlash == -1 ? "" : name.substring(0, lastSlash).replace('/', '.'));
+			}
+		}
+		this.packages = Collections.unmodifiableSet(classPackages);
+	}
+
+	/**
+	 * The position of the end of central directory record, searched backwards through the maximal comment length.
+	 */
+	private int findEnd() throws IOException {
+		int size = source.size();
+		if (size < END_SIZE) {
+			throw new IOException("not a zip file: " + location);
+		}
+		int start = Math.max(0, size - END_SIZE - 0xFFFF);
+		ByteBuffer tail = source.read(start, size - start);
+		for (int position = tail.limit() - END_SIZE; position >= 0; position--) {
+			if (tail.getInt(position) == END_SIGNATURE) {
+				return start + position;
+			}
+		}
+		throw new IOException("not a zip file: " + location);
+	}
+
+	private static String string(final ByteBuffer buffer, final int position, final int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(position, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static boolean isSignature(final String name) {
+		if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) != -1) {
+			return false;
+		}
+		return name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC");
+	}
+
+	private Manifest readManifest() throws IOException {
+		byte[] content = bytes(MANIFEST_NAME);
+		return content != null ? new Manifest(new ByteArrayInputStream(content)) : null;
+	}
+
+	/**
+	 * The location of the jar.
+	 */
+	URL location() {
+		return location;
+	}
+
+	/**
+	 * The manifest or null.
+	 */
+	Manifest manifest() {
+		return manifest;
+	}
+
+	/**
+	 * The packages of all classes in the jar.
+	 */
+	Set<String> packages() {
+		return packages;
+	}
+
+	boolean contains(final String name) {
+		return index.containsKey(name);
+	}
+
+	/**
+	 * The names of all entries.
+	 */
+	Set<String> names() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+
+	/**
+	 * Opens a jar inside this jar. A stored jar is read in place from this jar. A compressed jar is inflated into memory
+	 * and held on the heap until the nested jar is closed, so the jars of a module archive should be stored
+	 * uncompressed. The nested jar has to be closed before this jar.
+	 *
+	 * @param name the name of the jar entry
+	 * @return the nested jar
+	 * @throws IOException if the entry does not exist or is not a supported jar
+	 */
+	ModuleJar nested(final String name) throws IOException {
+		Integer entry = index.get(name);
+		if (entry == null) {
+			throw new IOException("no entry " + name + " in " + location);
+		}
+		URL nestedLocation = uri(name).toURL();
+		lock.readLock().lock();
+		try {
+			if (closed) {
+				throw new IOException("jar is closed: " + location);
+			}
+			switch (methods[entry]) {
+				case STORED -> {
+					return new ModuleJar(nestedLocation, source.window(dataOffset(entry), compressedSizes[entry]));
+				}
+				case DEFLATED -> {
+					return new ModuleJar(nestedLocation, new BufferSource(content(entry), () -> {
+					}));
+				}
+				default -> throw new IOException("unsupported compression method " + methods[entry] + " in " + location);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads an entry, stored entries are passed without copying.
+	 *
+	 * @param name the name of the entry
+	 * @param reader the reader
+	 * @return the result of the reader or null if there is no such entry
+	 * @throws IOException if the entry can not be read or the jar is closed
+	 */
+	<T> T read(final String name, final EntryReader<T> reader) throws IOException {
+		Integer entry = index.get(name);
+		if (entry == null) {
+			return null;
+		}
+		lock.readLock().lock();
+		try {
+			if (closed) {
+				throw new IOException("jar is closed: " + location);
+			}
+			return reader.read(content(entry));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns a copy of an entry.
+	 *
+	 * @param name the name of the entry
+	 * @return the content or null if there is no such entry
+	 * @throws IOException if the entry can not be read or the jar is closed
+	 */
+	byte[] bytes(final String name) throws IOException {
+		return read(name, content -> {
+			byte[] bytes = new byte[content.remaining()];
+			content.get(bytes);
+			return bytes;
+		});
+	}
+
+	/**
+	 * Returns the URL of an entry, in the same form as the URLs of the JDK jar handler.
+	 *
+	 * @param name the name of the entry
+	 * @return the URL or null if there is no such entry
+	 */
+	URL url(final String name) {
+		if (!contains(name)) {
+			return null;
+		}
+		try {
+			return URL.of(uri(name), handler);
+		} catch (MalformedURLException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The URI of an entry, the name is encoded like the entry URLs of the JDK class path.
+	 */
+	private URI uri(final String name) {
+		StringBuilder encoded = new StringBuilder(entryPrefix.length() + name.length());
+		encoded.append(entryPrefix);
+		for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+			int c = b & 0xFF;
+			if (c < 0x80 && (Character.isLetterOrDigit(c) || "/-_.!~*'()@:$&+=,;".indexOf(c) != -1)) {
+				encoded.append((char) c);
+			} else {
+				encoded.append('%').append(HEX[c >> 4]).append(HEX[c & 0xF]);
+			}
+		}
+		return URI.create(encoded.toString());
+	}
+
+	/**
+	 * The entry name of an URL created by {@link #url(String)}.
+	 */
+	private String entryName(final URL url) {
+		String encoded = url.toString().substring(entryPrefix.length());
+		if (encoded.indexOf('%') == -1) {
+			return encoded;
+		}
+		byte[] bytes = new byte[encoded.length()];
+		int length = 0;
+		for (int i = 0; i < encoded.length(); i++) {
+			char c = encoded.charAt(i);
+			if (c == '%' && i + 2 < encoded.length()) {
+				bytes[length++] = (byte) Integer.parseInt(encoded, i + 1, i + 3, 16);
+				i += 2;
+			} else {
+				bytes[length++] = (byte) c;
+			}
+		}
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The position of the data of an entry, behind its local header.
+	 */
+	private int dataOffset(final int entry) throws IOException {
+		int header = localHeaderOffsets[entry];
+		ByteBuffer localHeader = source.read(header, LOCAL_HEADER_SIZE);
+		if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+			throw new IOException("invalid local header: " + location);
+		}
+		int nameLength = Short.toUnsignedInt(localHeader.getShort(26));
+		int extraLength = Short.toUnsignedInt(localHeader.getShort(28));
+		return header + LOCAL_HEADER_SIZE + nameLength + extraLength;
+	}
+
+	private ByteBuffer content(final int entry) throws IOException {
+		ByteBuffer compressed = source.read(dataOffset(entry), compressedSizes[entry]);
+
+		switch (methods[entry]) {
+			case STORED -> {
+				return compressed;
+			}
+			case DEFLATED -> {
+				byte[] content = new byte[sizes[entry]];
+				Inflater inflater = new Inflater(true);
+				try {
+					inflater.setInput(compressed);
+					int length = 0;
+					while (length < content.length && !inflater.finished()) {
+						int inflated = inflater.inflate(content, length, content.length - length);
+						if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+							break;
+						}
+						length += inflated;
+					}
+					if (length != content.length) {
+						throw new IOException("truncated entry in " + location);
+					}
+				} catch (DataFormatException e) {
+					throw new IOException("invalid entry in " + location, e);
+				} finally {
+					inflater.end();
+				}
+				return ByteBuffer.wrap(content);
+			}
+			default -> throw new IOException("unsupported compression method " + methods[entry] + " in " + location);
+		}
+	}
+
+	/**
+	 * Releases the mapping or file, waits for running reads.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			source.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Unmaps the buffer without waiting for the garbage collector, if the JDK allows it.
+	 */
+	static void unmap(final MappedByteBuffer buffer) {
+		if (INVOKE_CLEANER == null) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invokeExact(buffer);
+		} catch (Throwable t) {
+			// released by the garbage collector
+		}
+	}
+
+	private static MethodHandle invokeCleaner() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			return MethodHandles.lookup()
+					.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+					.bindTo(theUnsafe.get(null))
+					.asType(MethodType.methodType(void.class, MappedByteBuffer.class));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The content of a jar, read by absolute position. Buffers are little endian and only valid while the jar is open.
+	 */
+	private interface Source extends Closeable {
+
+		int size();
+
+		/**
+		 * @param position the position in the jar
+		 * @param length the number of bytes
+		 * @return the bytes, a view for a mapping, a copy for a file
+		 * @throws IOException if the bytes can not be read
+		 */
+		ByteBuffer read(int position, int length) throws IOException;
+
+		/**
+		 * A part of this source as source of a nested jar, closing it does not close this source.
+		 */
+		default Source window(final int offset, final int length) throws IOException {
+			if (offset < 0 || length < 0 || offset > size() - length) {
+				throw new IOException("entry out of bounds");
+			}
+			Source parent = this;
+			return new Source() {
+				@Override
+				public int size() {
+					return length;
+				}
+
+				@Override
+				public ByteBuffer read(final int position, final int count) throws IOException {
+					if (position < 0 || count < 0 || position > length - count) {
+						throw new EOFException("read beyond the end of the jar");
+					}
+					return parent.read(offset + position, count);
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+
+	/**
+	 * A mapping, reads return views of the mapping.
+	 */
+	private static final class BufferSource implements Source {
+
+		private final ByteBuffer data;
+
+		private final Closeable release;
+
+		private BufferSource(final ByteBuffer data, final Closeable release) {
+			this.data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+			this.release = release;
+		}
+
+		@Override
+		public int size() {
+			return data.limit();
+		}
+
+		@Override
+		public ByteBuffer read(final int position, final int length) throws IOException {
+			if (position < 0 || length < 0 || position > data.limit() - length) {
+				throw new EOFException("read beyond the end of the jar");
+			}
+			return data.slice(position, length).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		@Override
+		public void close() throws IOException {
+			release.close();
+		}
+	}
+
+	/**
+	 * A file read with positional reads. Positional reads of a FileChannel run concurrently without a lock. An
+	 * interrupt of a reading thread closes the channel for all readers, so the channel is opened again and the read is
+	 * repeated, if the file has not been replaced or modified in the meantime.
+	 */
+	private static final class FileSource implements Source {
+
+		private final Path file;
+
+		private final int size;
+
+		/**
+		 * The attributes of the file when it was opened, to detect a replaced or modified file on reopen.
+		 */
+		private final BasicFileAttributes opened;
+
+		private final ReentrantLock reopenLock = new ReentrantLock();
+
+		private volatile FileChannel channel;
+
+		private volatile boolean closed = false;
+
+		private FileSource(final Path file) throws IOException {
+			this.file = file;
+			this.channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				this.opened = Files.readAttributes(file, BasicFileAttributes.class);
+				long fileSize = channel.size();
+				if (fileSize > Integer.MAX_VALUE) {
+					throw new IOException("jar too large: " + file);
+				}
+				this.size = (int) fileSize;
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public ByteBuffer read(final int position, final int length) throws IOException {
+			if (position < 0 || length < 0 || position > size - length) {
+				throw new EOFException("read beyond the end of the jar");
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+			boolean interrupted = false;
+			try {
+				while (buffer.hasRemaining()) {
+					FileChannel current = channel;
+					try {
+						if (current.read(buffer, (long) position + buffer.position()) < 0) {
+							throw new EOFException("read beyond the end of the jar");
+						}
+					} catch (ClosedChannelException e) {
+						// the read is repeated without the interrupt status, it is restored when the read is done
+						interrupted |= Thread.interrupted();
+						reopen(current, e);
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return buffer.flip();
+		}
+
+		private void reopen(final FileChannel stale, final ClosedChannelException cause) throws IOException {
+			reopenLock.lock();
+			try {
+				if (closed) {
+					throw cause;
+				}
+				if (channel == stale) {
+					FileChannel reopened = FileChannel.open(file, StandardOpenOption.READ);
+					if (!unchanged(Files.readAttributes(file, BasicFileAttributes.class))) {
+						reopened.close();
+						throw new IOException("jar was modified or replaced while it was open: " + file, cause);
+					}
+					channel = reopened;
+				}
+			} finally {
+				reopenLock.unlock();
+			}
+		}
+
+		private boolean unchanged(final BasicFileAttributes current) {
+			Object key = opened.fileKey();
+			return (key == null || key.equals(current.fileKey())) && current.size() == opened.size()
+					&& current.lastModifiedTime().equals(opened.lastModifiedTime());
+		}
+
+		@Override
+		public void close() throws IOException {
+			reopenLock.lock();
+			try {
+				closed = true;
+				channel.close();
+			} finally {
+				reopenLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Serves the entry URLs of this jar, the content is copied when the connection is opened.
+	 */
+	private final class EntryHandler extends URLStreamHandler {
+
+		@Override
+		protected URLConnection openConnection(final URL url) throws IOException {
+			String name = entryName(url);
+			return new URLConnection(url) {
+
+				private byte[] content;
+
+				@Override
+				public void connect() throws IOException {
+					if (content == null) {
+						content = bytes(name);
+						if (content == null) {
+							throw new IOException("no entry " + name + " in " + location);
+						}
+						connected = true;
+					}
+				}
+
+				@Override
+				public InputStream getInputStream() throws IOException {
+					connect();
+					return new ByteArrayInputStream(content);
+				}
+
+				@Override
+				public long getContentLengthLong() {
+					try {
+						connect();
+						return content.length;
+					} catch (IOException e) {
+						return -1;
+					}
+				}
+			};
+		}
+	}
+}
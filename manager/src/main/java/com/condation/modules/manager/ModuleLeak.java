@@ -21,20 +21,16 @@ package com.condation.modules.manager;
  * <http://www.gnu.org/licenses/gpl-3.0.html>.
  * #L%
  */
-
-
-
-import java.util.Comparator;
+import java.util.List;
 
 /**
+ * A closed module whose class loader was not collected.
  *
- * @author marx
+ * @param moduleId the id of the module
+ * @param version the version of the module
+ * @param gcCycles the number of major collections since the module was closed
+ * @param hints references that probably keep the class loader alive, may be empty
+ * @author thmarx
  */
-public class ModuleComparator implements Comparator<ModuleImpl> {
-
-	@Override
-	public int compare(ModuleImpl o1, ModuleImpl o2) {
-		return ((Integer) o1.getDependencies().size()).compareTo(o2.getDependencies().size());
-	}
-	
+public record ModuleLeak(String moduleId, String version, long gcCycles, List<String> hints) {
 }
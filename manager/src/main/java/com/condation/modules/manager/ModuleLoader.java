@@ -30,10 +30,22 @@ import com.condation.modules.api.ModuleLifeCycleExtension;
 import com.condation.modules.api.ModuleRequestContextFactory;
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
@@ -41,9 +53,17 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class ModuleLoader {
 
+	private static final Logger LOGGER = LoggerFactory.getLogger(ModuleLoader.class);
+
+	static final Duration DEFAULT_DRAIN_TIMEOUT = Duration.ofSeconds(30);
+
+	static final Duration DEFAULT_CLOSE_TIMEOUT = Duration.ofMinutes(5);
+
 	private final ManagerConfiguration configuration;
 
 	final Map<String, ModuleImpl> activeModules = new ConcurrentHashMap<>();
+	
+	final ExtensionRegistry extensionRegistry = new ExtensionRegistry();
 
 	final File modulesPath;
 	final File modulesDataPath;
@@ -54,10 +74,70 @@ public class ModuleLoader {
 	final ModuleInjector injector;
 	
 	final ModuleRequestContextFactory requestContextFactory;
+	
+	final ModuleDescriptors descriptors;
+
+	/**
+	 * The maximum number of modules of one dependency level that are activated concurrently.
+	 */
+	final int activationParallelism;
+
+	/**
+	 * Load all module classes on activation, for the training run of a class data sharing archive.
+	 */
+	final boolean classDataSharingTraining;
+
+	/**
+	 * The time to wait for running extension calls before a deactivated module is closed, after it the module is closed
+	 * in the background.
+	 */
+	final Duration drainTimeout;
+
+	/**
+	 * The maximum time a deactivated module stays open for running calls, after it the module is closed anyway.
+	 */
+	final Duration closeTimeout;
+
+	/**
+	 * The threads closing modules in the background, ended by {@link #closeDrainingModules()}.
+	 */
+	private final Set<Thread> drainThreads = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Verifies that the class loaders of closed modules are unloaded, null if disabled.
+	 */
+	final ClassLoaderLeakDetector leakDetector;
+
+	/**
+	 * Initialize modules on the first lookup of an extension they provide instead of on activation.
+	 */
+	final boolean lazyActivation;
+
+	/**
+	 * Read the module jars from a memory mapping instead of the URLClassLoader.
+	 */
+	final boolean mapModuleJars;
 
 	protected ModuleLoader(final ManagerConfiguration configuration, final File modulesPath, final File modulesDataPath, 
 			final ModuleAPIClassLoader globalClassLoader, final Context context, final ModuleInjector injector,
 			final ModuleRequestContextFactory requestContextFactory) {
+		this(configuration, modulesPath, modulesDataPath, globalClassLoader, context, injector, requestContextFactory, 
+				new ModuleDescriptors(modulesPath), 1, ClassDataSharing.isTrainingRun(), DEFAULT_DRAIN_TIMEOUT, DEFAULT_CLOSE_TIMEOUT, null, false, false);
+	}
+
+	ModuleLoader(final ManagerConfiguration configuration, final File modulesPath, final File modulesDataPath, 
+			final ModuleAPIClassLoader globalClassLoader, final Context context, final ModuleInjector injector,
+			final ModuleRequestContextFactory requestContextFactory, final ModuleDescriptors descriptors,
+			final int activationParallelism, final boolean classDataSharingTraining, final Duration drainTimeout,
+			final Duration closeTimeout, final ClassLoaderLeakDetector leakDetector, final boolean lazyActivation, final boolean mapModuleJars) {
+		this.descriptors = descriptors;
+		this.activationParallelism = Math.max(1, activationParallelism);
+		this.classDataSharingTraining = classDataSharingTraining;
+		this.drainTimeout = drainTimeout;
+		this.closeTimeout = closeTimeout;
+		this.leakDetector = leakDetector;
+		this.lazyActivation = lazyActivation;
+		this.mapModuleJars = mapModuleJars;
 		this.configuration = configuration;
 		this.modulesPath = modulesPath;
 		this.modulesDataPath = modulesDataPath;
@@ -70,76 +150,424 @@ public class ModuleLoader {
 	protected Map<String, ModuleImpl> activeModules() {
 		return activeModules;
 	}
+	
+	/**
+	 * Publishes the active modules to the extension registry, must be called after every change of the active modules.
+	 * The snapshot is taken and published under the lock of the loader, a concurrent activation can not overwrite the
+	 * snapshot of a deactivation with a stale one.
+	 */
+	private synchronized void publishActiveModules() {
+		extensionRegistry.publish(activeModules.values());
+	}
 
+	/**
+	 * Deactivates a module. The module is unpublished under the lock of the loader, waiting for its running calls and
+	 * closing it happen outside the lock, so other modules can be activated meanwhile.
+	 */
 	protected boolean deactivateModule(final String moduleId) throws IOException {
+		ModuleImpl module = unpublish(moduleId);
+		if (module != null) {
+			drainAndClose(module);
+		}
+		return true;
+	}
 
+	/**
+	 * Calls the deactivate callbacks of an active module and removes it from the lookups.
+	 *
+	 * @return the module to close or null if it is not active
+	 */
+	private synchronized ModuleImpl unpublish(final String moduleId) {
 		ModuleImpl module = activeModules().get(moduleId);
+		if (module == null) {
+			return null;
+		}
 		module.extensions(ModuleLifeCycleExtension.class).stream().forEach((ModuleLifeCycleExtension mle) -> {
 			mle.setContext(context);
 			mle.deactivate();
 		});
 
-		activeModules().get(moduleId).close();
+		// unpublish before closing, so lookups no longer see the module
 		activeModules().remove(moduleId);
-
-		return true;
+		publishActiveModules();
+		return module;
 	}
 
-	protected boolean activateModule(final String moduleId) throws IOException {
+	protected synchronized boolean activateModule(final String moduleId) throws IOException {
 		
-		File moduleDir = new File(modulesPath, configuration.get(moduleId).getModuleDir());
+		ManagerConfiguration.ModuleConfig config = configuration.get(moduleId);
+		if (config == null) {
+			config = new ManagerConfiguration.ModuleConfig(moduleId).setModuleDir(moduleId);
+		}
+		ModuleDescriptor descriptor = descriptors.refresh(moduleDir(config, moduleId));
 		File moduleData = modulesDataPath;
-//		File moduleData = activeModules().get(moduleId).getModulesDataDir();
 
-		ModuleImpl module = new ModuleImpl(moduleDir, moduleData, this.context, this.injector, this.requestContextFactory);
+		ModuleImpl module = new ModuleImpl(descriptor, moduleData, this.context, this.injector, this.requestContextFactory);
 
 		if (areDependencyFulfilled(module)) {
-			ManagerConfiguration.ModuleConfig config = configuration.get(moduleId);
+			activate(module);
+			config.setActive(true);
+			configuration.add(config);
+
+			publishActiveModules();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the directory of the module, the id of the module if it has no configuration or no directory
+	 */
+	private static String moduleDir(final ManagerConfiguration.ModuleConfig config, final String moduleId) {
+		return config != null && config.getModuleDir() != null ? config.getModuleDir() : moduleId;
+	}
+
+	/**
+	 * Replaces an active module with the installed version without downtime. The new version is loaded and activated
+	 * side by side, then it is published to the extension lookups in one step. The old version gets its deactivate
+	 * callbacks and is closed when the calls running through its extensions are done.
+	 * 
+	 * The lifecycle callbacks run in this order: activate of the new version, publish, deactivate of the old version.
+	 * Both versions are active for a short time, a module must not assume that its deactivate callback ran before the
+	 * activate callback of the next version, e.g. when both register the same resource.
+	 * 
+	 * The jars of the old version stay mapped until it is closed, new versions must be installed as new files (write
+	 * and rename) instead of overwriting the jars in place.
+	 *
+	 * @param moduleId the id of the module
+	 * @return true if the new version is active, false if it could not be activated and the old version is still active
+	 * @throws IOException if the descriptor of the new version can not be read
+	 */
+	protected boolean upgradeModule(final String moduleId) throws IOException {
+		ModuleImpl previous;
+		synchronized (this) {
+			previous = activeModules.get(moduleId);
+			if (previous == null) {
+				return activateModule(moduleId);
+			}
+
+			ModuleDescriptor descriptor = descriptors.refresh(moduleDir(configuration.get(moduleId), moduleId));
+			ModuleImpl next = new ModuleImpl(descriptor, modulesDataPath, this.context, this.injector, this.requestContextFactory);
+			if (!moduleId.equals(next.getId()) || !areDependencyFulfilled(next)) {
+				return false;
+			}
+			try {
+				next.init(this.globalClassLoader, mapModuleJars);
+				next.extensions(ModuleLifeCycleExtension.class).stream().forEach((ModuleLifeCycleExtension mle) -> {
+					mle.setContext(context);
+					mle.activate();
+				});
+			} catch (IOException | RuntimeException e) {
+				LOGGER.error("error activating new version of module " + moduleId, e);
+				closeQuietly(next);
+				return false;
+			}
+
+			// lookups see either the old or the new version
+			activeModules.put(moduleId, next);
+			publishActiveModules();
+
+			try {
+				previous.extensions(ModuleLifeCycleExtension.class).stream().forEach((ModuleLifeCycleExtension mle) -> {
+					mle.setContext(context);
+					mle.deactivate();
+				});
+			} catch (RuntimeException e) {
+				LOGGER.error("error deactivating old version of module " + moduleId, e);
+			}
+		}
+		// outside the lock, other modules can be activated while the old version drains
+		drainAndClose(previous);
+		return true;
+	}
+
+	/**
+	 * Closes an unpublished module when the lookups and the calls running through its extensions are done. New calls
+	 * can still reach the module through extensions the caller holds. If calls are still running after the drain timeout, the module is
+	 * left open and closed in the background when they are done, closing the class loader would fail them. After the
+	 * close timeout the module is closed anyway, running calls may then fail with a NoClassDefFoundError.
+	 */
+	private void drainAndClose(final ModuleImpl module) throws IOException {
+		if (module.awaitIdle(drainTimeout)) {
+			close(module);
+			return;
+		}
+		LOGGER.warn("module {} has {} running calls after {}, it is closed when they are done, at the latest after {}",
+				module.getId(), module.inFlight(), drainTimeout, closeTimeout);
+		Thread drain = Thread.ofVirtual().name("module-drain-" + module.getId()).unstarted(() -> {
+			try {
+				Duration remaining = closeTimeout.minus(drainTimeout);
+				if (!module.awaitIdle(remaining.isNegative() ? Duration.ZERO : remaining)) {
+					LOGGER.warn("module {} still has {} running calls, it is closed anyway", module.getId(), module.inFlight());
+				}
+				close(module);
+			} catch (IOException | RuntimeException e) {
+				LOGGER.warn("error closing module " + module.getId(), e);
+			} finally {
+				drainThreads.remove(Thread.currentThread());
+			}
+		});
+		drainThreads.add(drain);
+		drain.start();
+	}
+
+	/**
+	 * Ends the waiting for running calls of deactivated modules, the modules are closed right away.
+	 */
+	void closeDrainingModules() {
+		for (Thread drain : List.copyOf(drainThreads)) {
+			drain.interrupt();
+		}
+		for (Thread drain : List.copyOf(drainThreads)) {
+			try {
+				drain.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void close(final ModuleImpl module) throws IOException {
+		// a lazy module must not be initialized between tracking and closing
+		synchronized (module) {
+			if (leakDetector != null) {
+				leakDetector.track(module.getId(), module.getVersion(), module.classloader);
+			}
+			module.close();
+		}
+	}
+
+	/**
+	 * Applies the changes of module directories and archives reported by the watcher. Changed modules are reloaded with
+	 * their dependents, new modules are registered inactive. A deleted module is deactivated with its dependents and
+	 * removed from the configuration. The dependents are configured as inactive, when the module is installed again
+	 * they are activated like any other inactive module.
+	 *
+	 * @param moduleFiles the names of the changed module directories and archives
+	 */
+	protected void modulesChanged(final Set<String> moduleFiles) {
+		drainAndClose(applyChanges(moduleFiles));
+	}
+
+	/**
+	 * @return the unpublished modules to close
+	 */
+	private synchronized List<ModuleImpl> applyChanges(final Set<String> moduleFiles) {
+		Set<String> changedIds = new HashSet<>();
+		Set<String> deletedIds = new HashSet<>();
+		for (String moduleFile : moduleFiles) {
+			// the id of the module before the change
+			List<String> previousIds = configuration.getModules().values().stream()
+					.filter(mc -> moduleFile.equals(mc.getModuleDir()))
+					.map(ManagerConfiguration.ModuleConfig::getId)
+					.toList();
+			if (!new File(modulesPath, moduleFile).exists()) {
+				descriptors.remove(moduleFile);
+				deletedIds.addAll(previousIds);
+				continue;
+			}
+			changedIds.addAll(previousIds);
+			try {
+				ModuleDescriptor descriptor = descriptors.refresh(moduleFile);
+				changedIds.add(descriptor.id());
+				if (configuration.get(descriptor.id()) == null) {
+					configuration.add(new ManagerConfiguration.ModuleConfig(descriptor.id()).setModuleDir(moduleFile));
+				}
+			} catch (IOException | RuntimeException e) {
+				// e.g. an unknown priority, the module is not reloaded and stays deactivated
+				LOGGER.warn("can not read module {}", moduleFile, e);
+			}
+		}
+		changedIds.addAll(deletedIds);
+		// not reloaded, the dependents are deactivated
+		Set<String> dependents = withDependents(deletedIds);
+		dependents.removeAll(deletedIds);
+		dependents.stream().map(configuration::get).filter(Objects::nonNull).forEach(config -> config.setActive(false));
+		deletedIds.forEach(configuration::remove);
+		if (!deletedIds.isEmpty()) {
+			LOGGER.info("removed modules {}, deactivated the dependent modules {}", deletedIds, dependents);
+		}
+		return reload(changedIds);
+	}
+
+	/**
+	 * Reloads active modules from disk. The modules and all active modules depending on them are deactivated, dependents
+	 * first, and activated again in dependency order with fresh descriptors. Modules that can no longer be read stay
+	 * deactivated, so do their dependents. Modules that are configured as active but failed to load before are tried
+	 * again.
+	 *
+	 * @param moduleIds the ids of the changed modules
+	 */
+	protected void reloadModules(final Collection<String> moduleIds) {
+		drainAndClose(reload(moduleIds));
+	}
+
+	/**
+	 * @return the unpublished modules to close, dependents first
+	 */
+	private synchronized List<ModuleImpl> reload(final Collection<String> moduleIds) {
+		Set<String> affected = withDependents(moduleIds.stream()
+				.filter(id -> activeModules.containsKey(id) || (configuration.get(id) != null && configuration.get(id).isActive()))
+				.toList());
+		if (affected.isEmpty()) {
+			return List.of();
+		}
+
+		List<ModuleImpl> unpublished = new ArrayList<>();
+		List<ModuleImpl> affectedModules = affected.stream().map(activeModules::get).filter(Objects::nonNull).toList();
+		List<List<ModuleImpl>> levels = ModuleResolver.resolve(affectedModules, activeModules::containsKey).levels();
+		for (int i = levels.size() - 1; i >= 0; i--) {
+			for (ModuleImpl module : levels.get(i)) {
+				try {
+					ModuleImpl deactivated = unpublish(module.getId());
+					if (deactivated != null) {
+						unpublished.add(deactivated);
+					}
+				} catch (RuntimeException e) {
+					LOGGER.error("error deactivating module " + module.getId(), e);
+				}
+			}
+		}
+
+		List<ModuleImpl> reloaded = new ArrayList<>();
+		for (String id : affected) {
+			ManagerConfiguration.ModuleConfig config = configuration.get(id);
 			if (config == null) {
-				config = new ManagerConfiguration.ModuleConfig(moduleId);
+				// removed module
+				continue;
 			}
+			try {
+				ModuleDescriptor descriptor = descriptors.refresh(config.getModuleDir());
+				reloaded.add(new ModuleImpl(descriptor, modulesDataPath, this.context, this.injector, this.requestContextFactory));
+			} catch (IOException | RuntimeException e) {
+				LOGGER.error("module {} can not be reloaded", id, e);
+			}
+		}
+		tryToLoadModules(reloaded);
+		LOGGER.info("reloaded modules {}", reloaded.stream().map(ModuleImpl::getId).filter(activeModules::containsKey).toList());
+		return unpublished;
+	}
 
-			module.init(this.globalClassLoader);
+	/**
+	 * @return the ids and the ids of all active modules depending on them, directly or transitively
+	 */
+	private Set<String> withDependents(final Collection<String> moduleIds) {
+		Set<String> result = new HashSet<>();
+		Deque<String> queue = new ArrayDeque<>(moduleIds);
+		while (!queue.isEmpty()) {
+			String id = queue.poll();
+			if (!result.add(id)) {
+				continue;
+			}
+			activeModules.values().stream()
+					.filter(module -> module.getDependencies().stream().anyMatch(dependency -> dependency.id().equals(id)))
+					.map(ModuleImpl::getId)
+					.forEach(queue::add);
+		}
+		return result;
+	}
 
-			config.setActive(true);
-			module.extensions(ModuleLifeCycleExtension.class).stream().forEach((ModuleLifeCycleExtension mle) -> {
-				mle.setContext(context);
-				mle.activate();
-			});
-			configuration.add(config);
+	/**
+	 * Closes unpublished modules in order.
+	 */
+	private void drainAndClose(final List<ModuleImpl> modules) {
+		for (ModuleImpl module : modules) {
+			try {
+				drainAndClose(module);
+			} catch (IOException | RuntimeException e) {
+				LOGGER.error("error closing module " + module.getId(), e);
+			}
+		}
+	}
 
+	/**
+	 * Activates a module. In lazy mode a module is only prepared, unless it has lifecycle extensions, their activate
+	 * callbacks need the initialized module. A training run for class data sharing always initializes the modules.
+	 */
+	private void activate(final ModuleImpl module) throws IOException {
+		if (lazyActivation && !classDataSharingTraining && module.prepare(this.globalClassLoader, mapModuleJars)
+				&& !module.provides(ModuleLifeCycleExtension.class)) {
 			activeModules().put(module.getId(), module);
-			return true;
+			return;
 		}
-		return false;
+		module.init(this.globalClassLoader, mapModuleJars);
+		if (classDataSharingTraining && module.classloader instanceof ModuledFirstURLClassLoader loader) {
+			int loaded = loader.preloadClasses();
+			LOGGER.info("preloaded {} classes of module {} for the class data sharing archive", loaded, module.getId());
+		}
+
+		module.extensions(ModuleLifeCycleExtension.class).stream().forEach((ModuleLifeCycleExtension mle) -> {
+			mle.setContext(context);
+			mle.activate();
+		});
+
+		activeModules().put(module.getId(), module);
 	}
 	
+	/**
+	 * Activates all modules that are configured as active in dependency order. Modules with missing dependencies, in a
+	 * dependency cycle or depending on a module that fails to activate are not activated.
+	 * 
+	 * The modules of one dependency level are independent of each other and are activated concurrently, up to
+	 * {@link #activationParallelism} at a time. The next level starts when the current level is done.
+	 *
+	 * @param modules the modules
+	 */
 	protected void tryToLoadModules(final List<ModuleImpl> modules) {
-		// sort modules by dependency count low to max
-		Collections.sort(modules, new ModuleComparator());
+		List<ModuleImpl> configured = modules.stream()
+				.filter(module -> configuration.get(module.getId()) != null && configuration.get(module.getId()).isActive())
+				.toList();
 
-		int tryCount = 0;
-		int oldSize = modules.size();
-		while (!modules.isEmpty()) {
-			if (tryCount > 2) {
-				break;
+		ModuleResolver.Resolution resolution = ModuleResolver.resolve(configured, activeModules::containsKey);
+		resolution.unresolvable().forEach((id, reason) -> LOGGER.warn("module {} not loaded: {}", id, reason));
+
+		for (List<ModuleImpl> level : resolution.levels()) {
+			if (activationParallelism == 1 || level.size() == 1) {
+				level.forEach(this::activateIsolated);
+				continue;
 			}
-			loadFulfilledModules(modules);
-			if (modules.size() == oldSize) {
-				tryCount++;
-			} else {
-				oldSize = modules.size();
+			// activation is mostly io and waiting in activate callbacks, the semaphore bounds the concurrency
+			Semaphore permits = new Semaphore(activationParallelism);
+			try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+				for (ModuleImpl module : level) {
+					executor.execute(() -> {
+						permits.acquireUninterruptibly();
+						try {
+							activateIsolated(module);
+						} finally {
+							permits.release();
+						}
+					});
+				}
 			}
 		}
+		publishActiveModules();
 	}
 
-	private void loadFulfilledModules(final List<ModuleImpl> modules) {
-		for (final ModuleImpl module : modules) {
-			if (areDependencyFulfilled(module) && configuration.get(module.getId()).isActive()) {
-				activeModules.put(module.getId(), module);
-			}
+	/**
+	 * Activates the module, a failure only affects the module itself and the modules depending on it.
+	 */
+	private void activateIsolated(final ModuleImpl module) {
+		if (!areDependencyFulfilled(module)) {
+			LOGGER.warn("module {} not loaded: a dependency failed to activate", module.getId());
+			return;
+		}
+		try {
+			activate(module);
+		} catch (Exception e) {
+			LOGGER.error("error activating module " + module.getId(), e);
+			closeQuietly(module);
+		}
+	}
+
+	private void closeQuietly(final ModuleImpl module) {
+		activeModules().remove(module.getId(), module);
+		try {
+			close(module);
+		} catch (IOException e) {
+			LOGGER.warn("error closing module " + module.getId(), e);
 		}
-		modules.removeAll(activeModules.values());
 	}
 
 	private boolean areDependencyFulfilled(final ModuleImpl module) {
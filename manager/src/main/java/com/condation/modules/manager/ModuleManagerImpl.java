@@ -28,11 +28,14 @@ import com.condation.modules.api.Module;
 import com.condation.modules.api.ModuleDescription;
 import com.condation.modules.api.ModuleLifeCycleExtension;
 import com.condation.modules.api.ModuleManager;
+import com.condation.modules.api.ModuleRequestContext;
 import com.condation.modules.api.ModuleRequestContextFactory;
 import java.io.File;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -59,6 +62,134 @@ public class ModuleManagerImpl implements ModuleManager {
 		private ModuleAPIClassLoader classLoader = null;
 		private ModuleInjector injector = null;
 		private ModuleRequestContextFactory requestContextFactory = null;
+		private boolean persistDescriptorCache = false;
+		private int activationParallelism = 1;
+		private boolean classDataSharingTraining = ClassDataSharing.isTrainingRun();
+		private Duration watchDebounce = null;
+		private Duration drainTimeout = ModuleLoader.DEFAULT_DRAIN_TIMEOUT;
+		private Duration closeTimeout = ModuleLoader.DEFAULT_CLOSE_TIMEOUT;
+		private int leakDetectionCycles = 3;
+		private boolean lazyActivation = false;
+		private boolean mapModuleJars = false;
+
+		/**
+		 * Reads the module jars from a memory mapping instead of the URLClassLoader, class bytes and resources are read
+		 * without copying. Defaults to false. A mapped jar must not be overwritten in place while its module is active,
+		 * the JVM crashes with SIGBUS when it reads a truncated page. Module updates have to replace the files, e.g. by
+		 * an atomic move. Module archives are always read by the manager, without mapping with positional reads.
+		 *
+		 * @param mapModuleJars true to map the module jars
+		 * @return the builder
+		 */
+		public Builder mapModuleJars(boolean mapModuleJars) {
+			this.mapModuleJars = mapModuleJars;
+			return this;
+		}
+
+		/**
+		 * Activates modules without initializing them. A module is marked active from its descriptor and the extension
+		 * indexes of its jars, the class loader is created on the first lookup of an extension the module provides.
+		 * Modules with lifecycle extensions are always initialized on activation.
+		 *
+		 * @param lazyActivation true to initialize modules on first use
+		 * @return the builder
+		 */
+		public Builder lazyActivation(boolean lazyActivation) {
+			this.lazyActivation = lazyActivation;
+			return this;
+		}
+
+		/**
+		 * Reports closed modules whose class loader survives the given number of major collections, see
+		 * {@link ModuleManagerImpl#suspectedLeaks()}. Defaults to 3, 0 disables the leak detection.
+		 *
+		 * @param gcCycles the number of major collections or 0
+		 * @return the builder
+		 */
+		public Builder leakDetection(int gcCycles) {
+			this.leakDetectionCycles = gcCycles;
+			return this;
+		}
+
+		/**
+		 * The time to wait for running extension calls of a deactivated module or of the old version of an upgraded
+		 * module. Defaults to 30 seconds. A module with calls running after the timeout is not closed, it is closed in
+		 * the background when the calls are done, at the latest after the {@link #closeTimeout(Duration)}.
+		 *
+		 * @param drainTimeout the drain timeout
+		 * @return the builder
+		 */
+		public Builder drainTimeout(Duration drainTimeout) {
+			this.drainTimeout = drainTimeout;
+			return this;
+		}
+
+		/**
+		 * The maximum time a deactivated module or the old version of an upgraded module stays open for running calls.
+		 * Defaults to 5 minutes. After it the module is closed even if calls are still running, they may fail with a
+		 * NoClassDefFoundError. Long running calls, e.g. a loop in an extension, would keep the class loader alive
+		 * otherwise.
+		 *
+		 * @param closeTimeout the close timeout, measured from the deactivation
+		 * @return the builder
+		 */
+		public Builder closeTimeout(Duration closeTimeout) {
+			this.closeTimeout = closeTimeout;
+			return this;
+		}
+
+		/**
+		 * Watches the modules path after {@link ModuleManager#initModules()} and reloads changed modules and the modules
+		 * depending on them in the background. Changes are collected until the modules path has been quiet for the
+		 * debounce time. Deleted modules are deactivated and removed from the configuration. With
+		 * {@link #mapModuleJars(boolean)} the jars of a module must be replaced, not overwritten in place, the old
+		 * version reads them until it is deactivated.
+		 *
+		 * @param debounce the debounce time or null to disable watching
+		 * @return the builder
+		 */
+		public Builder watchModules(Duration debounce) {
+			this.watchDebounce = debounce;
+			return this;
+		}
+
+		/**
+		 * Loads all classes of a module when it is activated, so a training run with {@code -XX:ArchiveClassesAtExit}
+		 * archives them. Defaults to the system property {@value ClassDataSharing#TRAINING_PROPERTY}, see
+		 * {@link ClassDataSharing}.
+		 *
+		 * @param classDataSharingTraining true for a training run
+		 * @return the builder
+		 */
+		public Builder classDataSharingTraining(boolean classDataSharingTraining) {
+			this.classDataSharingTraining = classDataSharingTraining;
+			return this;
+		}
+
+		/**
+		 * Sets how many independent modules are activated concurrently on startup, 1 activates the modules one by one.
+		 * Defaults to 1. With a higher value the {@link ModuleLifeCycleExtension#activate()} callbacks of independent
+		 * modules run concurrently and must be thread safe.
+		 *
+		 * @param activationParallelism the maximum number of concurrent activations
+		 * @return the builder
+		 */
+		public Builder activationParallelism(int activationParallelism) {
+			this.activationParallelism = activationParallelism;
+			return this;
+		}
+
+		/**
+		 * Persists the module descriptors in the modules data path, so a restart does not parse the module.properties of
+		 * unchanged modules.
+		 *
+		 * @param persistDescriptorCache true to persist the descriptor cache
+		 * @return the builder
+		 */
+		public Builder persistDescriptorCache(boolean persistDescriptorCache) {
+			this.persistDescriptorCache = persistDescriptorCache;
+			return this;
+		}
 
 		public Builder requestContextFactory(ModuleRequestContextFactory requestContextFactory) {
 			this.requestContextFactory = requestContextFactory;
@@ -174,6 +305,14 @@ public class ModuleManagerImpl implements ModuleManager {
 
 	final ModuleServiceLoader systemExtensionLoader;
 
+	final ModuleDescriptors descriptors;
+
+	final Duration watchDebounce;
+
+	private ModuleWatcher watcher;
+
+	private final ClassLoaderLeakDetector leakDetector;
+
 	public ModuleManagerImpl() {
 		this.modulesDataPath = null;
 		this.modulesPath = null;
@@ -183,6 +322,9 @@ public class ModuleManagerImpl implements ModuleManager {
 		this.injector = null;
 		this.requestContextFactory = null;
 		this.systemExtensionLoader = null;
+		this.descriptors = null;
+		this.watchDebounce = null;
+		this.leakDetector = null;
 	}
 
 	private ModuleManagerImpl(final Builder builder) {
@@ -191,21 +333,20 @@ public class ModuleManagerImpl implements ModuleManager {
 		this.context = builder.context;
 		this.injector = builder.injector;
 		this.requestContextFactory = builder.requestContextFactory;
+		this.watchDebounce = builder.watchDebounce;
+		this.leakDetector = builder.leakDetectionCycles > 0 ? new ClassLoaderLeakDetector(builder.leakDetectionCycles) : null;
 
 		this.configuration = new ManagerConfiguration();
 		this.globalClassLoader = builder.classLoader;
+		this.descriptors = new ModuleDescriptors(modulesPath, builder.persistDescriptorCache ? modulesDataPath : null);
 		this.moduleLoader = new ModuleLoader(configuration, modulesPath, modulesDataPath, this.globalClassLoader,
-				this.context, this.injector, this.requestContextFactory);
-
-		File[] moduleFiles = modulesPath.listFiles((File file) -> file.isDirectory());
-		File moduleData = modulesDataPath;
+				this.context, this.injector, this.requestContextFactory, this.descriptors, builder.activationParallelism,
+				builder.classDataSharingTraining, builder.drainTimeout, builder.closeTimeout, this.leakDetector,
+				builder.lazyActivation, builder.mapModuleJars);
 
 		Set<String> allUsedModuleIDs = new HashSet<>();
 
-		Map<String, ModuleImpl> modules = new HashMap<>();
-		if (moduleFiles != null) {
-			loadModules(moduleFiles, moduleData, allUsedModuleIDs, modules);
-		}
+		loadModules(allUsedModuleIDs);
 		configuration.getModules().values().stream().filter((mc) -> (!allUsedModuleIDs.contains(mc.getId()))).forEach((mc) -> {
 			configuration.remove(mc.getId());
 		});
@@ -217,17 +358,13 @@ public class ModuleManagerImpl implements ModuleManager {
 	@Override
 	public void initModules() {
 
-		File[] moduleFiles = modulesPath.listFiles((File file) -> file.isDirectory());
-		File moduleData = modulesDataPath;
-
 		Set<String> allUsedModuleIDs = new HashSet<>();
 
-		Map<String, ModuleImpl> modules = new HashMap<>();
-		if (moduleFiles != null) {
-			loadModules(moduleFiles, moduleData, allUsedModuleIDs, modules);
-		}
+		Map<String, ModuleDescriptor> modules = loadModules(allUsedModuleIDs);
 
-		List<ModuleImpl> moduleList = new ArrayList<>(modules.values());
+		List<ModuleImpl> moduleList = new ArrayList<>(modules.size());
+		modules.values().forEach(descriptor -> moduleList.add(
+				new ModuleImpl(descriptor, modulesDataPath, this.context, this.injector, this.requestContextFactory)));
 		moduleLoader.tryToLoadModules(moduleList);
 
 		configuration.getModules().values().forEach((mc) -> {
@@ -235,37 +372,83 @@ public class ModuleManagerImpl implements ModuleManager {
 				configuration.get(mc.getId()).setActive(false);
 			}
 		});
+
+		if (watchDebounce != null) {
+			startWatcher();
+		}
 	}
 
-	private void loadModules(File[] moduleFiles, File moduleData, Set<String> allUsedModuleIDs, Map<String, ModuleImpl> modules) {
-		for (File module : moduleFiles) {
-			try {
-				ModuleImpl mod = new ModuleImpl(module, moduleData, this.context, this.injector, this.requestContextFactory
-				);
-				allUsedModuleIDs.add(mod.getId());
-				modules.put(mod.getId(), mod);
-				if (configuration.get(mod.getId()) == null) {
-					configuration.add(new ManagerConfiguration.ModuleConfig(mod.getId()).setModuleDir(module.getName()));
-				}
-			} catch (IOException ex) {
-				LOGGER.error("", ex);
-				// deactivate module
-				String modid = module.getName();
-				allUsedModuleIDs.add(modid);
-				if (configuration.get(modid) != null) {
-					LOGGER.warn("deactivate module caused by an error");
-					configuration.get(modid).setActive(false);
-				}
+	private synchronized void startWatcher() {
+		if (watcher != null) {
+			return;
+		}
+		try {
+			watcher = new ModuleWatcher(modulesPath, watchDebounce, moduleLoader::modulesChanged);
+			watcher.start();
+		} catch (IOException e) {
+			LOGGER.error("can not watch the modules path", e);
+		}
+	}
+
+	/**
+	 * Discovers the modules in the modules path and registers them in the configuration.
+	 * 
+	 * @param allUsedModuleIDs collects the ids of all modules
+	 * @return the descriptors of all modules by id
+	 */
+	private Map<String, ModuleDescriptor> loadModules(Set<String> allUsedModuleIDs) {
+		Map<String, IOException> errors = descriptors.discover();
+		errors.forEach((modid, ex) -> {
+			LOGGER.error("", ex);
+			// deactivate module
+			allUsedModuleIDs.add(modid);
+			if (configuration.get(modid) != null) {
+				LOGGER.warn("deactivate module caused by an error");
+				configuration.get(modid).setActive(false);
+			}
+		});
+
+		Map<String, ModuleDescriptor> modules = new HashMap<>();
+		for (ModuleDescriptor descriptor : descriptors.all()) {
+			allUsedModuleIDs.add(descriptor.id());
+			modules.put(descriptor.id(), descriptor);
+			if (configuration.get(descriptor.id()) == null) {
+				configuration.add(new ManagerConfiguration.ModuleConfig(descriptor.id()).setModuleDir(descriptor.moduleDir().getName()));
 			}
 		}
+		return modules;
 	}
 
 	@Override
 	public void close() {
+		synchronized (this) {
+			if (watcher != null) {
+				try {
+					watcher.close();
+				} catch (IOException e) {
+					LOGGER.warn("", e);
+				}
+				watcher = null;
+			}
+		}
 		extensions(ModuleLifeCycleExtension.class).stream().forEach((ModuleLifeCycleExtension mle) -> {
 			mle.setContext(context);
 			mle.deactivate();
 		});
+		moduleLoader.closeDrainingModules();
+		if (leakDetector != null) {
+			leakDetector.close();
+		}
+	}
+
+	/**
+	 * Returns the deactivated or upgraded modules whose class loader was not unloaded after the configured number of
+	 * major collections, with the threads that probably keep it alive. Empty if the leak detection is disabled.
+	 *
+	 * @return the suspected class loader leaks
+	 */
+	public List<ModuleLeak> suspectedLeaks() {
+		return leakDetector != null ? leakDetector.leaks() : List.of();
 	}
 
 	/**
@@ -286,14 +469,12 @@ public class ModuleManagerImpl implements ModuleManager {
 
 		return modules.stream().map((mc) -> {
 			try {
-				File moduleDir = new File(modulesPath, configuration.get(mc.getId()).getModuleDir());
-				File moduleData = modulesDataPath;
-				ModuleImpl module = new ModuleImpl(moduleDir, moduleData, this.context, this.injector, this.requestContextFactory);
-				return module;
+				return descriptors.get(mc.getModuleDir());
 			} catch (IOException ex) {
 				throw new RuntimeException(ex);
 			}
-		}).sorted(new ModuleComparator()).map(Module::getId).collect(Collectors.toList());
+		}).sorted(Comparator.comparingInt(descriptor -> descriptor.dependencies().size()))
+				.map(ModuleDescriptor::id).collect(Collectors.toList());
 	}
 
 	/**
@@ -305,19 +486,18 @@ public class ModuleManagerImpl implements ModuleManager {
 	 */
 	@Override
 	public ModuleDescription description(final String id) throws IOException {
-		ModuleImpl module;
+		ModuleDescription description = new ModuleDescription();
 		if (moduleLoader.activeModules.containsKey(id)) {
-			module = moduleLoader.activeModules.get(id);
+			ModuleImpl module = moduleLoader.activeModules.get(id);
+			description.setVersion(module.getVersion());
+			description.setName(module.getName());
+			description.setDescription(module.getDescription());
 		} else {
-			ManagerConfiguration.ModuleConfig mc = configuration.get(id);
-			File moduleDir = new File(modulesPath, configuration.get(mc.getId()).getModuleDir());
-			module = new ModuleImpl(moduleDir, null, this.context, this.injector, this.requestContextFactory);
+			ModuleDescriptor descriptor = descriptors.get(configuration.get(id).getModuleDir());
+			description.setVersion(descriptor.version());
+			description.setName(descriptor.name());
+			description.setDescription(descriptor.description());
 		}
-
-		ModuleDescription description = new ModuleDescription();
-		description.setVersion(module.getVersion());
-		description.setName(module.getName());
-		description.setDescription(module.getDescription());
 		return description;
 	}
 
@@ -331,12 +511,11 @@ public class ModuleManagerImpl implements ModuleManager {
 	 */
 	@Override
 	public boolean activateModule(final String moduleId) throws IOException {
-		if (configuration.get(moduleId) == null || !configuration.get(moduleId).isActive()) {
+		if (configuration.get(moduleId) == null || !configuration.get(moduleId).isActive()
+				|| !moduleLoader.activeModules().containsKey(moduleId)) {
 			return moduleLoader.activateModule(moduleId);
-		} else if (configuration.get(moduleId) != null && configuration.get(moduleId).isActive()) {
-			return true;
 		}
-		return false;
+		return true;
 
 	}
 
@@ -360,6 +539,24 @@ public class ModuleManagerImpl implements ModuleManager {
 
 	}
 
+	/**
+	 * Upgrades an active module to the version in the modules path. The new version is activated side by side and
+	 * replaces the old one for all lookups at once, the old version is closed after its running calls are done.
+	 * Inactive modules are activated. The activate callbacks of the new version run before the deactivate callbacks of
+	 * the old version.
+	 *
+	 * @param moduleId the id of the module
+	 * @return true if the new version is active
+	 * @throws IOException
+	 */
+	@Override
+	public boolean upgradeModule(final String moduleId) throws IOException {
+		if (configuration.get(moduleId) == null || !configuration.get(moduleId).isActive()) {
+			return activateModule(moduleId);
+		}
+		return moduleLoader.upgradeModule(moduleId);
+	}
+
 	/**
 	 * Returns all Extensions of the given type.
 	 *
@@ -369,21 +566,43 @@ public class ModuleManagerImpl implements ModuleManager {
 	 */
 	@Override
 	public <T extends ExtensionPoint> List<T> extensions(Class<T> extensionClass) {
+		return extensions(extensionClass, null);
+	}
+
+	/**
+	 * Returns all Extensions of the given type for a request. The request context is resolved once per lookup, if
+	 * none is given it is created by the {@link ModuleRequestContextFactory}.
+	 *
+	 * @param <T>
+	 * @param extensionClass
+	 * @param requestContext the context of the current request or null
+	 * @return
+	 */
+	@Override
+	public <T extends ExtensionPoint> List<T> extensions(Class<T> extensionClass, ModuleRequestContext requestContext) {
+		ModuleImpl[] providing = moduleLoader.extensionRegistry.providing(extensionClass);
+		boolean systemProvides = !systemExtensionLoader.providers(extensionClass).isEmpty();
+		if (providing.length == 0 && !systemProvides) {
+			return Collections.emptyList();
+		}
+		
+		ModuleRequestContext currentContext = requestContext != null ? requestContext
+				: requestContextFactory != null ? requestContextFactory.createContext() : null;
 		List<T> extensions = new ArrayList<>();
-		moduleLoader.activeModules().values().forEach((ModuleImpl m) -> {
-			var moduleExt = m.extensions(extensionClass);
-			if (!moduleExt.isEmpty()) {
-				extensions.addAll(moduleExt);
-			}
-		});
+		for (ModuleImpl m : providing) {
+			extensions.addAll(m.extensions(extensionClass, currentContext));
+		}
+		if (!systemProvides) {
+			return extensions;
+		}
 		// system modules
 		systemExtensionLoader.get(extensionClass)
 				.stream()
 				.map(ext -> {
 					ext.setContext(context);
 					
-					if (requestContextFactory != null) {
-						ext.setRequestContext(requestContextFactory.createContext());
+					if (currentContext != null) {
+						ext.setRequestContext(currentContext);
 					}
 
 					if (injector != null) {
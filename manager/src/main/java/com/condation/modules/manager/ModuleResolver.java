@@ -0,0 +1,154 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import com.condation.modules.api.Module.Priority;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Resolves the activation order of modules from their dependencies.
+ * 
+ * The dependency graph is built once and sorted with Kahn's algorithm, the result are the activation levels. All
+ * dependencies of a module are in lower levels, so the modules of one level are independent of each other. Inside a
+ * level modules with a higher {@link Priority} come first.
+ * 
+ * Modules with a missing dependency, modules in a dependency cycle and all modules depending on them are not part of
+ * the levels but reported as unresolvable.
+ *
+ * @author thmarx
+ */
+final class ModuleResolver {
+
+	private static final Comparator<ModuleImpl> LEVEL_ORDER = Comparator
+			.comparing((ModuleImpl module) -> module.getPriority(), Comparator.reverseOrder())
+			.thenComparing(ModuleImpl::getId);
+
+	private ModuleResolver() {
+	}
+
+	/**
+	 * The result of the resolution.
+	 * 
+	 * @param levels the activation levels, every level only depends on the levels before
+	 * @param unresolvable the ids of the unresolvable modules with the reason
+	 */
+	record Resolution(List<List<ModuleImpl>> levels, Map<String, String> unresolvable) {
+	}
+
+	/**
+	 * Resolves the activation levels of the modules.
+	 *
+	 * @param modules the modules to resolve
+	 * @param available dependencies that are already fulfilled, e.g. the ids of active modules
+	 * @return the resolution
+	 */
+	static Resolution resolve(final Collection<ModuleImpl> modules, final Predicate<String> available) {
+		Map<String, ModuleImpl> byId = new LinkedHashMap<>();
+		modules.forEach(module -> byId.putIfAbsent(module.getId(), module));
+
+		Map<String, String> unresolvable = new LinkedHashMap<>();
+		Map<String, List<ModuleImpl>> dependents = new HashMap<>();
+		Map<String, Integer> inDegree = new HashMap<>();
+		Deque<String> failed = new ArrayDeque<>();
+
+		for (ModuleImpl module : byId.values()) {
+			Set<String> dependencies = new LinkedHashSet<>();
+			module.getDependencies().forEach(dependency -> dependencies.add(dependency.id()));
+			int degree = 0;
+			for (String dependency : dependencies) {
+				if (byId.containsKey(dependency)) {
+					dependents.computeIfAbsent(dependency, id -> new ArrayList<>()).add(module);
+					degree++;
+				} else if (!available.test(dependency)) {
+					unresolvable.putIfAbsent(module.getId(), "missing dependency " + dependency);
+				}
+			}
+			inDegree.put(module.getId(), degree);
+			if (unresolvable.containsKey(module.getId())) {
+				failed.add(module.getId());
+			}
+		}
+
+		// everything depending on a module with a missing dependency is unresolvable too
+		while (!failed.isEmpty()) {
+			String id = failed.poll();
+			for (ModuleImpl dependent : dependents.getOrDefault(id, List.of())) {
+				if (unresolvable.putIfAbsent(dependent.getId(), "depends on unresolvable module " + id) == null) {
+					failed.add(dependent.getId());
+				}
+			}
+		}
+
+		List<List<ModuleImpl>> levels = new ArrayList<>();
+		List<ModuleImpl> level = new ArrayList<>();
+		for (ModuleImpl module : byId.values()) {
+			if (inDegree.get(module.getId()) == 0 && !unresolvable.containsKey(module.getId())) {
+				level.add(module);
+			}
+		}
+		int resolved = 0;
+		while (!level.isEmpty()) {
+			level.sort(LEVEL_ORDER);
+			levels.add(level);
+			resolved += level.size();
+
+			List<ModuleImpl> next = new ArrayList<>();
+			for (ModuleImpl module : level) {
+				for (ModuleImpl dependent : dependents.getOrDefault(module.getId(), List.of())) {
+					int degree = inDegree.merge(dependent.getId(), -1, Integer::sum);
+					if (degree == 0 && !unresolvable.containsKey(dependent.getId())) {
+						next.add(dependent);
+					}
+				}
+			}
+			level = next;
+		}
+
+		if (resolved + unresolvable.size() < byId.size()) {
+			// the rest is part of a cycle or depends on one
+			for (ModuleImpl module : byId.values()) {
+				String id = module.getId();
+				if (inDegree.get(id) > 0 && !unresolvable.containsKey(id)) {
+					List<String> waitingFor = module.getDependencies().stream()
+							.map(ModuleImpl.Dependency::id)
+							.filter(dependency -> byId.containsKey(dependency) && inDegree.get(dependency) > 0)
+							.distinct()
+							.toList();
+					unresolvable.put(id, "dependency cycle, waiting for " + waitingFor);
+				}
+			}
+		}
+
+		return new Resolution(levels, unresolvable);
+	}
+}
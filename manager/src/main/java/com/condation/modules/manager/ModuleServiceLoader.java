@@ -22,16 +22,32 @@ package com.condation.modules.manager;
  * #L%
  */
 
+import com.condation.modules.api.ExtensionFactory;
+import com.condation.modules.api.annotation.Extension;
+import com.condation.modules.api.annotation.ExtensionIndex;
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -45,21 +61,100 @@ public final class ModuleServiceLoader {
 
 	private final ClassLoader loader;
 
+	/**
+	 * Finds the service files and indexes.
+	 */
+	private final Resources resources;
+
 	private final ConcurrentMap<Class<?>, List<Provider<?>>> providers = new ConcurrentHashMap<>();
 
-	private ModuleServiceLoader(ClassLoader loader) {
+	/**
+	 * Extensions of all jars with a binary extension index, by contract.
+	 */
+	private final Map<String, List<ExtensionIndex.Entry>> index = new HashMap<>();
+
+	/**
+	 * Roots of the jars with an index, their service files are not parsed.
+	 */
+	private final Set<String> indexedRoots = new HashSet<>();
+
+	private ModuleServiceLoader(ClassLoader loader, Resources resources) {
 		this.loader = loader;
+		this.resources = resources;
+		readIndexes();
 	}
 
 	public static ModuleServiceLoader create(ClassLoader loader) {
-		return new ModuleServiceLoader(loader);
+		return new ModuleServiceLoader(loader, loader::getResources);
+	}
+
+	/**
+	 * Creates a service loader for the extensions of a module. Only the service files and indexes of the module jars are
+	 * read, the extensions of the host are provided by the service loader of the host and are not discovered again for
+	 * every module.
+	 * 
+	 * @param loader the module class loader
+	 * @return the service loader
+	 */
+	static ModuleServiceLoader createLocal(URLClassLoader loader) {
+		return new ModuleServiceLoader(loader, loader::findResources);
+	}
+
+	/**
+	 * Reads the extension points provided by a module jar without a class loader. A jar with a binary extension index
+	 * provides the contracts of its index, a jar without one the names of its service files, the same as the lookup
+	 * of the providers. The jar is read as a stream, e.g. from an entry of a module archive, only the index is read.
+	 * 
+	 * @param jar the module jar
+	 * @param contracts the set to add the contracts to
+	 * @throws IOException if the jar or its index can not be read
+	 */
+	static void readContracts(final JarInputStream jar, final Set<String> contracts) throws IOException {
+		Set<String> serviceFiles = new HashSet<>();
+		ZipEntry entry;
+		while ((entry = jar.getNextEntry()) != null) {
+			String name = entry.getName();
+			if (ExtensionIndex.LOCATION.equals(name)) {
+				ExtensionIndex.read(jar).forEach(indexed -> contracts.add(indexed.contract()));
+				return;
+			}
+			if (name.startsWith(PREFIX) && name.length() > PREFIX.length() && name.indexOf('/', PREFIX.length()) == -1) {
+				serviceFiles.add(name.substring(PREFIX.length()));
+			}
+		}
+		contracts.addAll(serviceFiles);
+	}
+
+	/**
+	 * Reads the extension points provided by a module jar, the same as {@link #readContracts(JarInputStream, Set)}.
+	 * 
+	 * @param jar the module jar
+	 * @param contracts the set to add the contracts to
+	 * @throws IOException if the jar or its index can not be read
+	 */
+	static void readContracts(final JarFile jar, final Set<String> contracts) throws IOException {
+		ZipEntry extensionIndex = jar.getEntry(ExtensionIndex.LOCATION);
+		if (extensionIndex != null) {
+			try (InputStream in = jar.getInputStream(extensionIndex)) {
+				ExtensionIndex.read(in).forEach(entry -> contracts.add(entry.contract()));
+			}
+			return;
+		}
+		jar.stream()
+				.map(ZipEntry::getName)
+				.filter(name -> name.startsWith(PREFIX) && name.length() > PREFIX.length() && name.indexOf('/', PREFIX.length()) == -1)
+				.forEach(name -> contracts.add(name.substring(PREFIX.length())));
+	}
+
+	@FunctionalInterface
+	private interface Resources {
+
+		Enumeration<URL> find(String name) throws IOException;
 	}
 
 	public <S> List<S> get(Class<S> service) {
 		try {
-			return providers.computeIfAbsent(service, clazz -> {
-				return initService(clazz);
-			}).stream()
+			return providers(service).stream()
 					.map(this::newInstance)
 					.filter(Objects::nonNull)
 					.map(service::cast)
@@ -70,7 +165,19 @@ public final class ModuleServiceLoader {
 		return Collections.emptyList();
 	}
 
-	private <S> S newInstance(Provider<S> provider) {
+	/**
+	 * Returns the providers for the service, the service files are only parsed on the first call.
+	 * 
+	 * @param service the service
+	 * @return the providers of the service
+	 */
+	List<Provider<?>> providers(Class<?> service) {
+		return providers.computeIfAbsent(service, clazz -> {
+			return initService(clazz);
+		});
+	}
+
+	<S> S newInstance(Provider<S> provider) {
 		try {
 			return provider.get();
 		} catch (Exception ex) {
@@ -79,20 +186,56 @@ public final class ModuleServiceLoader {
 		return null;
 	}
 
+	/**
+	 * Reads the binary extension indexes of all jars in one pass.
+	 */
+	private void readIndexes() {
+		try {
+			Enumeration<URL> indexes = resources.find(ExtensionIndex.LOCATION);
+			while (indexes.hasMoreElements()) {
+				var url = indexes.nextElement();
+				try (var ins = url.openStream()) {
+					List<ExtensionIndex.Entry> entries = ExtensionIndex.read(ins);
+					entries.forEach(entry -> index.computeIfAbsent(entry.contract(), c -> new ArrayList<>()).add(entry));
+					indexedRoots.add(root(url, ExtensionIndex.LOCATION));
+				} catch (IOException ioe) {
+					// fallback to the service files of the jar
+					log.warn("could not read extension index {}", url, ioe);
+				}
+			}
+		} catch (IOException e) {
+			log.error("", e);
+		}
+	}
+
+	private static String root(final URL url, final String resource) {
+		String externalForm = url.toExternalForm();
+		return externalForm.substring(0, externalForm.length() - resource.length());
+	}
+
 	private <S> List<Provider<?>> initService(Class<S> service) {
 
 		List<Provider<?>> providerImpls = new ArrayList<>();
+		index.getOrDefault(service.getName(), Collections.emptyList())
+				.forEach(entry -> addProvider(providerImpls, entry));
+		
+		// service files of jars without index
 		try {
 			String fullName = PREFIX + service.getName();
-			Enumeration<URL> resources = loader.getResources(fullName);
-			while (resources.hasMoreElements()) {
-				var url = resources.nextElement();
+			Enumeration<URL> serviceFiles = resources.find(fullName);
+			while (serviceFiles.hasMoreElements()) {
+				var url = serviceFiles.nextElement();
+				if (indexedRoots.contains(root(url, fullName))) {
+					continue;
+				}
 				try (var ins = url.openStream(); var reader = new BufferedReader(new InputStreamReader(ins))) {
 
 					String line;
 					while ((line = reader.readLine()) != null) {
-						var serviceImplClass = (Class<S>) Class.forName(line, false, loader);
-						providerImpls.add(new Provider<>(serviceImplClass));
+						ExtensionIndex.Entry entry = ExtensionIndex.Entry.fromServiceLine(service.getName(), line);
+						if (entry != null) {
+							addProvider(providerImpls, entry);
+						}
 					}
 				}
 			}
@@ -103,10 +246,75 @@ public final class ModuleServiceLoader {
 		return providerImpls;
 	}
 
-	private record Provider<S>(Class<S> type) {
+	private void addProvider(final List<Provider<?>> providerImpls, final ExtensionIndex.Entry entry) {
+		try {
+			var serviceImplClass = Class.forName(entry.implementation(), false, loader);
+			providerImpls.add(new Provider<>(serviceImplClass, entry.scope(), entry.proxy(), creator(serviceImplClass, entry)));
+		} catch (ReflectiveOperationException | LinkageError e) {
+			log.error("can not load extension {}", entry.implementation(), e);
+		}
+	}
+
+	/**
+	 * Uses the generated factory if available, otherwise a method handle of the no-arg constructor.
+	 */
+	private ExtensionFactory<?> creator(final Class<?> type, final ExtensionIndex.Entry entry) throws ReflectiveOperationException {
+		if (entry.factory()) {
+			try {
+				Class<?> factoryClass = Class.forName(entry.factoryName(), true, loader);
+				return (ExtensionFactory<?>) factoryClass.getConstructor().newInstance();
+			} catch (ClassNotFoundException | LinkageError e) {
+				log.warn("extension factory {} not available", entry.factoryName());
+			}
+		}
+		MethodHandle constructor = MethodHandles.privateLookupIn(type, MethodHandles.lookup())
+				.findConstructor(type, MethodType.methodType(void.class))
+				.asType(MethodType.methodType(Object.class));
+		return () -> {
+			try {
+				return constructor.invokeExact();
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new IllegalStateException("error creating instance of " + type.getName(), t);
+			}
+		};
+	}
+
+	/**
+	 * A provider for one implementation of a service. Providers are compared by identity, so they can be used as
+	 * key for caching scoped instances.
+	 * 
+	 * @param <S> 
+	 */
+	static final class Provider<S> {
+
+		private final Class<S> type;
+		private final Extension.Scope scope;
+		private final boolean proxy;
+		private final ExtensionFactory<?> factory;
+
+		private Provider(final Class<S> type, final Extension.Scope scope, final boolean proxy, final ExtensionFactory<?> factory) {
+			this.type = type;
+			this.scope = scope;
+			this.proxy = proxy;
+			this.factory = factory;
+		}
+
+		public Class<S> type() {
+			return type;
+		}
+
+		public Extension.Scope scope() {
+			return scope;
+		}
+
+		public boolean proxy() {
+			return proxy;
+		}
 
 		public S get() throws Exception {
-			return (S) type.getConstructors()[0].newInstance();
+			return (S) factory.create();
 		}
 	}
 }
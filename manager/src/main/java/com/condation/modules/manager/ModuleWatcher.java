@@ -0,0 +1,237 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the modules path and reports changed modules after the file system has been quiet for the debounce time.
+ * 
+ * The modules path, the module directories and their libs directories are watched. An event only marks a module as
+ * candidate, a module is reported if its state (size, modification time and number of the module.properties and jars,
+ * or of the module archive) has changed, so touching files does not reload a module.
+ *
+ * @author thmarx
+ */
+final class ModuleWatcher implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ModuleWatcher.class);
+
+	private final Path modulesPath;
+
+	private final Duration debounce;
+
+	/**
+	 * Called with the names of the changed module directories and archives.
+	 */
+	private final Consumer<Set<String>> listener;
+
+	private final WatchService watchService;
+
+	private final Map<WatchKey, Path> keys = new HashMap<>();
+
+	private final Map<String, ModuleState> states = new HashMap<>();
+
+	private final Thread thread;
+
+	private volatile boolean running = true;
+
+	/**
+	 * The state of a module on disk.
+	 */
+	record ModuleState(long size, long lastModified, int files) {
+
+		static ModuleState of(final Path module) {
+			long size = 0;
+			long lastModified = 0;
+			int files = 0;
+			File moduleFile = module.toFile();
+			File[] candidates = ModuleDescriptor.isArchive(moduleFile)
+					? new File[]{moduleFile}
+					: concat(new File(moduleFile, ModuleDescriptor.MODULE_PROPERTIES),
+							new File(moduleFile, "libs").listFiles((dir, name) -> name.endsWith(".jar")));
+			for (File file : candidates) {
+				try {
+					BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+					size += attributes.size();
+					lastModified = Math.max(lastModified, attributes.lastModifiedTime().toMillis());
+					files++;
+				} catch (IOException e) {
+					// missing file
+				}
+			}
+			return files == 0 ? null : new ModuleState(size, lastModified, files);
+		}
+
+		private static File[] concat(final File first, final File[] rest) {
+			File[] files = new File[1 + (rest != null ? rest.length : 0)];
+			files[0] = first;
+			if (rest != null) {
+				System.arraycopy(rest, 0, files, 1, rest.length);
+			}
+			return files;
+		}
+	}
+
+	ModuleWatcher(final File modulesPath, final Duration debounce, final Consumer<Set<String>> listener) throws IOException {
+		this.modulesPath = modulesPath.toPath();
+		this.debounce = debounce;
+		this.listener = listener;
+		this.watchService = FileSystems.getDefault().newWatchService();
+
+		register(this.modulesPath);
+		File[] modules = modulesPath.listFiles((File file) -> file.isDirectory() || ModuleDescriptor.isArchive(file));
+		if (modules != null) {
+			for (File module : modules) {
+				registerModule(module.toPath());
+				ModuleState state = ModuleState.of(module.toPath());
+				if (state != null) {
+					states.put(module.getName(), state);
+				}
+			}
+		}
+
+		this.thread = Thread.ofPlatform().daemon().name("module-watcher").unstarted(this::run);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	private void register(final Path directory) {
+		try {
+			WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			keys.put(key, directory);
+		} catch (IOException e) {
+			LOGGER.warn("can not watch {}", directory, e);
+		}
+	}
+
+	private void registerModule(final Path module) {
+		if (Files.isDirectory(module)) {
+			register(module);
+			Path libs = module.resolve("libs");
+			if (Files.isDirectory(libs)) {
+				register(libs);
+			}
+		}
+	}
+
+	private void run() {
+		Set<String> candidates = new HashSet<>();
+		try {
+			while (running) {
+				WatchKey key = candidates.isEmpty()
+						? watchService.take()
+						: watchService.poll(debounce.toMillis(), TimeUnit.MILLISECONDS);
+				if (key == null) {
+					// quiet for the debounce time
+					report(candidates);
+					candidates.clear();
+					continue;
+				}
+				Path directory = keys.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+						candidates.addAll(states.keySet());
+						File[] modules = modulesPath.toFile().listFiles((File file) -> file.isDirectory() || ModuleDescriptor.isArchive(file));
+						if (modules != null) {
+							for (File module : modules) {
+								candidates.add(module.getName());
+							}
+						}
+						continue;
+					}
+					Path changed = directory.resolve((Path) event.context());
+					Path relative = modulesPath.relativize(changed);
+					if (relative.getNameCount() == 0) {
+						continue;
+					}
+					String module = relative.getName(0).toString();
+					candidates.add(module);
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+						// a new module directory or its libs directory
+						if (relative.getNameCount() == 1) {
+							registerModule(changed);
+						} else if (relative.getNameCount() == 2 && "libs".equals(changed.getFileName().toString())) {
+							register(changed);
+						}
+					}
+				}
+				if (!key.reset()) {
+					keys.remove(key);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	private void report(final Set<String> candidates) {
+		Set<String> changed = new HashSet<>();
+		for (String module : candidates) {
+			ModuleState state = ModuleState.of(modulesPath.resolve(module));
+			ModuleState previous = state != null ? states.put(module, state) : states.remove(module);
+			if (!Objects.equals(state, previous)) {
+				changed.add(module);
+			}
+		}
+		if (changed.isEmpty()) {
+			return;
+		}
+		LOGGER.info("modules changed: {}", changed);
+		try {
+			listener.accept(changed);
+		} catch (RuntimeException e) {
+			LOGGER.error("error reloading modules {}", changed, e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		// a running reload is not interrupted, the thread ends after it
+		watchService.close();
+	}
+}
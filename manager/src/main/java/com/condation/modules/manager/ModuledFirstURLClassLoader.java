@@ -22,11 +22,24 @@ package com.condation.modules.manager;
  * #L%
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.security.CodeSigner;
+import java.security.CodeSource;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipFile;
 
 /**
  * A strict child-first ClassLoader that isolates module dependencies
@@ -34,68 +47,483 @@ import java.util.*;
  */
 public class ModuledFirstURLClassLoader extends URLClassLoader {
 
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    private static final String VERSIONS_PREFIX = "META-INF/versions/";
+
+    private static final int MAX_CACHED_RESOURCES = 4096;
+
+    private static final int MAX_CACHED_MISSES = 4096;
+
+    private static final URL[] NO_RESOURCES = new URL[0];
+
     private final ModuleAPIClassLoader moduleAPIClassLoader;
 
+    /**
+     * The module jars read by {@link ModuleJar} or null if the classpath is loaded by the URLClassLoader.
+     */
+    private final List<ModuleJar> jars;
+
+    /**
+     * The module archive the jars are read from or null.
+     */
+    private final ModuleJar archive;
+
+    /**
+     * Entry name to the first module jar containing it, null if the classpath is loaded by the URLClassLoader.
+     */
+    private final Map<String, ModuleJar> localIndex;
+
+    /**
+     * Entry name to the first jar containing it if the classpath is loaded by the URLClassLoader, null if the jars are
+     * read by {@link ModuleJar} or the classpath could not be indexed. The jars stay open until the loader is closed,
+     * local resources are read from them without an URL connection.
+     */
+    private final Map<String, JarFile> jarIndex;
+
+    /**
+     * The jars of {@link #jarIndex}, empty if there is none.
+     */
+    private final List<JarFile> indexedJars;
+
+    /**
+     * Results of resource lookups, local and parent resources. Absent resources are cached as empty array.
+     */
+    private final BoundedCache<URL[]> resourceCache = new BoundedCache<>(MAX_CACHED_RESOURCES);
+
+    /**
+     * The packages of the classes in the module jars or null if the classpath could not be indexed.
+     */
+    private final Set<String> localPackages;
+
+    /**
+     * Classes of local packages that are not in the module jars. Only names inside local packages are cached, and only
+     * if the packages are indexed, the cache is cleared when it is full.
+     */
+    private final BoundedCache<Boolean> localMisses = new BoundedCache<>(MAX_CACHED_MISSES);
+
+    /**
+     * Locks per class name, a ReentrantLock does not pin the carrier thread of a virtual thread.
+     */
+    private final ConcurrentMap<String, ReentrantLock> classLoadingLocks = new ConcurrentHashMap<>();
+
     public ModuledFirstURLClassLoader(URL[] classpath, ModuleAPIClassLoader moduleAPIClassLoader) {
+        this(classpath, moduleAPIClassLoader, false);
+    }
+
+    /**
+     * @param classpath the module jars
+     * @param moduleAPIClassLoader the api class loader
+     * @param mapJars true to read the jars from a memory mapping, the jars must not be overwritten in place while the
+     * loader is open
+     */
+    ModuledFirstURLClassLoader(URL[] classpath, ModuleAPIClassLoader moduleAPIClassLoader, boolean mapJars) {
+        this(classpath, mapJars ? openJars(classpath) : null, null, moduleAPIClassLoader);
+    }
+
+    private ModuledFirstURLClassLoader(URL[] classpath, List<ModuleJar> jars, ModuleJar archive, ModuleAPIClassLoader moduleAPIClassLoader) {
         // Use system classloader as parent to avoid unwanted delegation
         super(classpath, ClassLoader.getSystemClassLoader());
         this.moduleAPIClassLoader = moduleAPIClassLoader;
+        this.jars = jars;
+        this.archive = archive;
+        if (jars != null) {
+            Set<String> packages = new HashSet<>();
+            Map<String, ModuleJar> index = new HashMap<>();
+            for (ModuleJar jar : jars) {
+                packages.addAll(jar.packages());
+                jar.names().forEach(name -> index.putIfAbsent(name, jar));
+            }
+            this.localPackages = packages;
+            this.localIndex = index;
+            this.jarIndex = null;
+            this.indexedJars = List.of();
+        } else {
+            JarIndex index = indexJars(classpath);
+            this.localPackages = index != null ? index.packages() : null;
+            this.localIndex = null;
+            this.jarIndex = index != null ? index.names() : null;
+            this.indexedJars = index != null ? index.jars() : List.of();
+        }
+    }
+
+    /**
+     * Creates the class loader of a module archive, the jars in libs/ are read in place from the archive. The
+     * URLClassLoader can not read nested jars, without mapping the archive is read with positional reads.
+     * 
+     * @param archive the module archive
+     * @param moduleAPIClassLoader the api class loader
+     * @param mapArchive true to map the archive, false to read it with positional reads
+     * @return the class loader
+     * @throws IOException if the archive or one of its jars can not be read
+     */
+    static ModuledFirstURLClassLoader forArchive(File archive, ModuleAPIClassLoader moduleAPIClassLoader, boolean mapArchive) throws IOException {
+        ModuleJar archiveJar = mapArchive ? ModuleJar.open(archive) : ModuleJar.openFile(archive);
+        List<ModuleJar> jars = new ArrayList<>();
+        try {
+            List<String> libs = archiveJar.names().stream()
+                    .filter(name -> name.startsWith("libs/") && name.endsWith(".jar") && name.indexOf('/', "libs/".length()) == -1)
+                    .sorted()
+                    .toList();
+            for (String lib : libs) {
+                jars.add(archiveJar.nested(lib));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (ModuleJar jar : jars) {
+                jar.close();
+            }
+            archiveJar.close();
+            throw e;
+        }
+        URL[] classpath = jars.stream().map(ModuleJar::location).toArray(URL[]::new);
+        return new ModuledFirstURLClassLoader(classpath, jars, archiveJar, moduleAPIClassLoader);
+    }
+
+    /**
+     * Maps all jars of the classpath.
+     * 
+     * @return the jars or null if one of them can not be mapped
+     */
+    private static List<ModuleJar> openJars(URL[] classpath) {
+        List<ModuleJar> jars = new ArrayList<>(classpath.length);
+        for (URL url : classpath) {
+            File file = jarFile(url);
+            try {
+                if (file == null) {
+                    throw new IOException("not a jar file " + url);
+                }
+                jars.add(ModuleJar.open(file));
+            } catch (IOException e) {
+                for (ModuleJar jar : jars) {
+                    try {
+                        jar.close();
+                    } catch (IOException ignored) {}
+                }
+                return null;
+            }
+        }
+        return jars;
+    }
+
+    /**
+     * The entries of the jars of the classpath, read once when the loader is created.
+     * 
+     * @param packages the packages of all classes
+     * @param names entry name to the first jar containing it
+     * @param jars the open jars
+     */
+    private record JarIndex(Set<String> packages, Map<String, JarFile> names, List<JarFile> jars) {
+    }
+
+    /**
+     * Opens the jars of the classpath and indexes their entries. Versioned entries of multi release jars are indexed
+     * under their name and the jars are opened for the runtime version, like the URLClassLoader does.
+     * 
+     * @return the index or null if an entry of the classpath is not a readable jar
+     */
+    private static JarIndex indexJars(URL[] classpath) {
+        Set<String> packages = new HashSet<>();
+        Map<String, JarFile> names = new HashMap<>();
+        List<JarFile> jars = new ArrayList<>(classpath.length);
+        try {
+            for (URL url : classpath) {
+                File file = jarFile(url);
+                if (file == null) {
+                    closeAll(jars);
+                    return null;
+                }
+                JarFile jar = new JarFile(file, false, ZipFile.OPEN_READ, JarFile.runtimeVersion());
+                jars.add(jar);
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    String entry = entries.nextElement().getName();
+                    if (entry.startsWith(VERSIONS_PREFIX)) {
+                        // multi release jar: META-INF/versions/<version>/<entry>
+                        int nameStart = entry.indexOf('/', VERSIONS_PREFIX.length());
+                        if (nameStart == -1 || nameStart == entry.length() - 1) {
+                            continue;
+                        }
+                        names.putIfAbsent(entry, jar);
+                        entry = entry.substring(nameStart + 1);
+                    }
+                    names.putIfAbsent(entry, jar);
+                    if (entry.endsWith(".class")) {
+                        int lastSlash = entry.lastIndexOf('/');
+                        packages.add(lastSlash == -1 ? "" : entry.substring(0, lastSlash).replace('/', '.'));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            closeAll(jars);
+            return null;
+        }
+        return new JarIndex(packages, names, jars);
+    }
+
+    private static void closeAll(List<JarFile> jars) {
+        for (JarFile jar : jars) {
+            try {
+                jar.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static File jarFile(URL url) {
+        String spec = url.toString();
+        if (spec.startsWith("jar:file:") && spec.endsWith("!/")) {
+            spec = spec.substring("jar:".length(), spec.length() - "!/".length());
+        } else if (!spec.startsWith("file:") || !spec.endsWith(".jar")) {
+            return null;
+        }
+        try {
+            return new File(new URI(spec));
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the class may be in the module jars.
+     */
+    private boolean isLocalCandidate(String name) {
+        if (localPackages == null) {
+            return true;
+        }
+        int lastDot = name.lastIndexOf('.');
+        String packageName = lastDot == -1 ? "" : name.substring(0, lastDot);
+        return localPackages.contains(packageName) && localMisses.get(name) == null;
     }
 
     @Override
-    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
-		// Check already loaded
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		// Check already loaded, without locking
         Class<?> loadedClass = findLoadedClass(name);
         if (loadedClass != null) {
             if (resolve) resolveClass(loadedClass);
             return loadedClass;
         }
 
-		// System and JDK classes → always from parent/system
+		// System and JDK classes → parent first, the module may bundle classes of these packages the host does not have
         if (isSystemClass(name)) {
-            return super.loadClass(name, resolve);
+            Class<?> clazz;
+            try {
+                clazz = getParent().loadClass(name);
+            } catch (ClassNotFoundException cnfe) {
+                clazz = isLocalCandidate(name) ? findLocalClass(name) : null;
+                if (clazz == null) {
+                    throw cnfe;
+                }
+            }
+            if (resolve) resolveClass(clazz);
+            return clazz;
+        }
+
+		// Try to find class in this module first (child-first), only if the package is part of the module
+        if (isLocalCandidate(name)) {
+            Class<?> clazz = findLocalClass(name);
+            if (clazz != null) {
+                if (resolve) resolveClass(clazz);
+                return clazz;
+            }
+        }
+
+		// If explicitly allowed, load from API loader
+        if (moduleAPIClassLoader.isAllowed(name)) {
+            try {
+                Class<?> clazz = moduleAPIClassLoader.loadClass(name);
+                if (resolve) resolveClass(clazz);
+                return clazz;
+            } catch (ClassNotFoundException ignored) {
+                // Fallthrough
+            }
         }
+		// Fallback: maybe system/parent has it (e.g. JDK or shared lib), the module itself has been checked already
+        Class<?> clazz = getParent().loadClass(name);
+        if (resolve) resolveClass(clazz);
+        return clazz;
+    }
 
-		// Try to find class in this module first (child-first)
+    /**
+     * Defines the class from the module jars, only local classes are defined by this loader and need a lock.
+     * 
+     * @return the class or null if it is not in the module jars
+     */
+    private Class<?> findLocalClass(String name) {
+        ReentrantLock lock = classLoadingLocks.computeIfAbsent(name, key -> new ReentrantLock());
+        lock.lock();
         try {
-            Class<?> clazz = findClass(name);
-            if (resolve) resolveClass(clazz);
+            // may be defined by a concurrent thread
+            Class<?> clazz = findLoadedClass(name);
+            if (clazz == null) {
+                clazz = findClass(name);
+            }
             return clazz;
         } catch (ClassNotFoundException e) {
-			// If explicitly allowed, load from API loader
-            if (moduleAPIClassLoader.isAllowed(name)) {
+            if (localPackages != null) {
+                localMisses.put(name, Boolean.TRUE);
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Loads all classes of the module jars without initializing them, used by the training run for the class data
+     * sharing archive. Classes that can not be loaded, e.g. because of a missing optional dependency, are skipped.
+     * 
+     * @return the number of loaded classes
+     */
+    int preloadClasses() {
+        int loaded = 0;
+        for (List<String> entries : entryNames()) {
+            List<String> classes = entries.stream()
+                    .filter(entry -> entry.endsWith(".class") && !entry.startsWith("META-INF/") && !entry.endsWith("module-info.class"))
+                    .sorted()
+                    .toList();
+            for (String entry : classes) {
+                String name = entry.substring(0, entry.length() - ".class".length()).replace('/', '.');
                 try {
-                    Class<?> clazz = moduleAPIClassLoader.loadClass(name);
-                    if (resolve) resolveClass(clazz);
-                    return clazz;
-                } catch (ClassNotFoundException ignored) {
-                    // Fallthrough
+                    loadClass(name, false);
+                    loaded++;
+                } catch (ClassNotFoundException | LinkageError e) {
+                    // not loadable in this setup, not archived
                 }
             }
-			// Fallback: maybe system/parent has it (e.g. JDK or shared lib)
-            return super.loadClass(name, resolve);
         }
+        return loaded;
     }
 
-    private boolean isSystemClass(String name) {
-        return name.startsWith("java.")
-            || name.startsWith("sun.")
-            || name.startsWith("jdk.")
-            || name.startsWith("org.w3c.")
-            || name.startsWith("org.xml.")
-            || name.startsWith("org.objectweb.asm.")
-            || name.startsWith("com.sun.");
+    /**
+     * The entry names of each module jar, jars that can not be read are skipped.
+     */
+    private List<List<String>> entryNames() {
+        if (jars != null) {
+            return jars.stream().map(jar -> List.copyOf(jar.names())).toList();
+        }
+        List<List<String>> names = new ArrayList<>();
+        for (URL url : getURLs()) {
+            File file = jarFile(url);
+            if (file == null) {
+                continue;
+            }
+            try (JarFile jar = new JarFile(file, false)) {
+                names.add(jar.stream().map(JarEntry::getName).toList());
+            } catch (IOException e) {
+                // not preloaded
+            }
+        }
+        return names;
     }
 
     @Override
-    public URL getResource(String name) {
-        URL url = findResource(name);
-        if (url == null) url = super.getResource(name);
-        return url;
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        if (jars == null) {
+            return super.findClass(name);
+        }
+        String path = name.replace('.', '/').concat(".class");
+        ModuleJar jar = localIndex.get(path);
+        if (jar == null) {
+            throw new ClassNotFoundException(name);
+        }
+        try {
+            definePackage(name, jar);
+            CodeSource codeSource = new CodeSource(jar.location(), (CodeSigner[]) null);
+            return jar.read(path, content -> defineClass(name, content, codeSource));
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+
+    private void definePackage(String className, ModuleJar jar) {
+        int lastDot = className.lastIndexOf('.');
+        if (lastDot == -1) {
+            return;
+        }
+        String packageName = className.substring(0, lastDot);
+        if (getDefinedPackage(packageName) != null) {
+            return;
+        }
+        try {
+            if (jar.manifest() != null) {
+                definePackage(packageName, jar.manifest(), jar.location());
+            } else {
+                definePackage(packageName, null, null, null, null, null, null, null);
+            }
+        } catch (IllegalArgumentException e) {
+            // defined by a concurrent thread
+        }
     }
 
     @Override
-    public Enumeration<URL> getResources(String name) throws IOException {
+    public URL findResource(String name) {
+        if (jars == null) {
+            // absent resources are answered from the index
+            return jarIndex != null && !jarIndex.containsKey(name) ? null : super.findResource(name);
+        }
+        ModuleJar jar = localIndex.get(name);
+        return jar != null ? jar.url(name) : null;
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        if (jars == null) {
+            return jarIndex != null && !jarIndex.containsKey(name) ? Collections.emptyEnumeration() : super.findResources(name);
+        }
+        if (!localIndex.containsKey(name)) {
+            return Collections.emptyEnumeration();
+        }
+        List<URL> urls = new ArrayList<>();
+        for (ModuleJar jar : jars) {
+            URL url = jar.url(name);
+            if (url != null) {
+                urls.add(url);
+            }
+        }
+        return Collections.enumeration(urls);
+    }
+
+    /**
+     * Closes the loader, the mappings of the module jars are released.
+     */
+    @Override
+    public void close() throws IOException {
+        if (jars != null) {
+            for (ModuleJar jar : jars) {
+                jar.close();
+            }
+            // nested jars are closed first, they read from the archive
+            if (archive != null) {
+                archive.close();
+            }
+            super.close();
+            return;
+        }
+        closeAll(indexedJars);
+        super.close();
+
+        // workaround: close all libs manually: see https://bugs.openjdk.java.net/browse/JDK-7183373
+        for (URL u : getURLs()) {
+            if (u.getProtocol().equals("jar")) {
+                ((JarURLConnection) u.openConnection()).getJarFile().close();
+            }
+        }
+    }
+
+    private boolean isSystemClass(String name) {
+        return VisibilityPolicy.SYSTEM.isAllowed(name);
+    }
+
+    /**
+     * Returns the local and parent resources, the result is cached.
+     */
+    private URL[] cachedResources(String name) throws IOException {
+        URL[] cached = resourceCache.get(name);
+        if (cached != null) {
+            return cached;
+        }
         List<URL> urls = new ArrayList<>();
         Enumeration<URL> local = findResources(name);
         while (local.hasMoreElements()) urls.add(local.nextElement());
@@ -103,11 +531,55 @@ public class ModuledFirstURLClassLoader extends URLClassLoader {
         Enumeration<URL> parent = getParent().getResources(name);
         while (parent.hasMoreElements()) urls.add(parent.nextElement());
 
-        return Collections.enumeration(urls);
+        URL[] resources = urls.isEmpty() ? NO_RESOURCES : urls.toArray(URL[]::new);
+        resourceCache.put(name, resources);
+        return resources;
+    }
+
+    @Override
+    public URL getResource(String name) {
+        try {
+            URL[] urls = cachedResources(name);
+            return urls.length > 0 ? urls[0] : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Enumeration<URL> getResources(String name) throws IOException {
+        return Collections.enumeration(Arrays.asList(cachedResources(name)));
     }
 
     @Override
     public InputStream getResourceAsStream(String name) {
+        if (localIndex != null) {
+            // local resources are read directly, without an URL connection
+            ModuleJar jar = localIndex.get(name);
+            if (jar != null) {
+                try {
+                    byte[] content = jar.bytes(name);
+                    if (content != null) {
+                        return new ByteArrayInputStream(content);
+                    }
+                } catch (IOException ignored) {
+                    return null;
+                }
+            }
+        } else if (jarIndex != null) {
+            JarFile jar = jarIndex.get(name);
+            if (jar != null) {
+                try {
+                    JarEntry entry = jar.getJarEntry(name);
+                    if (entry != null) {
+                        return jar.getInputStream(entry);
+                    }
+                } catch (IOException | IllegalStateException ignored) {
+                    // closed
+                    return null;
+                }
+            }
+        }
         URL url = getResource(name);
         if (url != null) {
             try {
@@ -120,4 +592,31 @@ public class ModuledFirstURLClassLoader extends URLClassLoader {
     public <T> ServiceLoader<T> loadService(Class<T> serviceClass) {
         return ServiceLoader.load(serviceClass, this);
     }
+
+    /**
+     * A bounded cache of lookups. Reads do not lock and do not modify the cache, only a write to a full cache clears it,
+     * frequently used names are cached again by the next lookup. Concurrent lookups of the same name store the same
+     * result.
+     */
+    private static final class BoundedCache<V> {
+
+        private final ConcurrentHashMap<String, V> entries = new ConcurrentHashMap<>();
+
+        private final int maxSize;
+
+        BoundedCache(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        V get(String name) {
+            return entries.get(name);
+        }
+
+        void put(String name, V value) {
+            if (entries.mappingCount() >= maxSize) {
+                entries.clear();
+            }
+            entries.put(name, value);
+        }
+    }
 }
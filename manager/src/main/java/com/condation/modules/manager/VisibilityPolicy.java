@@ -0,0 +1,185 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.util.Arrays;
+
+/**
+ * Decides which classes and resources are visible by their package. The rules are package prefixes like
+ * {@code com.example.}, the most specific matching rule wins, so a package can be denied inside an allowed one.
+ * 
+ * The prefixes are compiled into a trie. A check walks the name once and does not allocate, dots and slashes are the
+ * same, so class names ({@code com.example.Foo}) and resource names ({@code com/example/foo.txt} or
+ * {@code /com/example/foo.txt}) are matched by the same rules.
+ *
+ * @author thmarx
+ */
+final class VisibilityPolicy {
+
+	/**
+	 * Classes that are always loaded from the system class loader.
+	 */
+	static final VisibilityPolicy SYSTEM = builder()
+			.allow("java.")
+			.allow("sun.")
+			.allow("jdk.")
+			.allow("org.w3c.")
+			.allow("org.xml.")
+			.allow("org.objectweb.asm.")
+			.allow("com.sun.")
+			.build();
+
+	private static final byte NONE = 0;
+	private static final byte ALLOW = 1;
+	private static final byte DENY = 2;
+
+	private final Node root;
+
+	private VisibilityPolicy(final Node root) {
+		this.root = root;
+	}
+
+	static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Returns true if the class or resource is visible.
+	 *
+	 * @param name a class name or resource name
+	 * @return true if the most specific matching rule allows the name
+	 */
+	boolean isAllowed(final String name) {
+		int start = !name.isEmpty() && name.charAt(0) == '/' ? 1 : 0;
+		byte rule = NONE;
+		Node node = root;
+		for (int i = start; i < name.length() && node != null; i++) {
+			node = node.child(normalize(name.charAt(i)));
+			if (node != null && node.rule != NONE) {
+				rule = node.rule;
+			}
+		}
+		return rule == ALLOW;
+	}
+
+	private static char normalize(final char c) {
+		return c == '/' ? '.' : c;
+	}
+
+	static final class Builder {
+
+		private final Node root = new Node();
+
+		private Builder() {
+		}
+
+		/**
+		 * Allows a package and its sub packages.
+		 *
+		 * @param packageName the package, with or without a trailing dot
+		 * @return the builder
+		 */
+		Builder allow(final String packageName) {
+			return add(packageName, ALLOW);
+		}
+
+		/**
+		 * Denies a package and its sub packages, even if a parent package is allowed.
+		 *
+		 * @param packageName the package, with or without a trailing dot
+		 * @return the builder
+		 */
+		Builder deny(final String packageName) {
+			return add(packageName, DENY);
+		}
+
+		Builder allowAll(final Iterable<String> packageNames) {
+			packageNames.forEach(this::allow);
+			return this;
+		}
+
+		Builder denyAll(final Iterable<String> packageNames) {
+			packageNames.forEach(this::deny);
+			return this;
+		}
+
+		private Builder add(final String packageName, final byte rule) {
+			String prefix = packageName.endsWith(".") ? packageName : packageName + ".";
+			Node node = root;
+			for (int i = 0; i < prefix.length(); i++) {
+				node = node.childOrCreate(normalize(prefix.charAt(i)));
+			}
+			// deny wins over allow for the same package
+			if (node.rule != DENY) {
+				node.rule = rule;
+			}
+			return this;
+		}
+
+		VisibilityPolicy build() {
+			return new VisibilityPolicy(root.copy());
+		}
+	}
+
+	private static final class Node {
+
+		private char[] keys = new char[0];
+		private Node[] children = new Node[0];
+		private byte rule = NONE;
+
+		Node child(final char c) {
+			char[] k = keys;
+			for (int i = 0; i < k.length; i++) {
+				if (k[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		Node childOrCreate(final char c) {
+			Node child = child(c);
+			if (child == null) {
+				child = new Node();
+				keys = Arrays.copyOf(keys, keys.length + 1);
+				children = Arrays.copyOf(children, children.length + 1);
+				keys[keys.length - 1] = c;
+				children[children.length - 1] = child;
+			}
+			return child;
+		}
+
+		/**
+		 * Returns a copy of the subtree, so the policy can not be changed by the builder later.
+		 */
+		Node copy() {
+			Node copy = new Node();
+			copy.rule = rule;
+			copy.keys = keys.clone();
+			copy.children = new Node[children.length];
+			for (int i = 0; i < children.length; i++) {
+				copy.children[i] = children[i].copy();
+			}
+			return copy;
+		}
+	}
+}
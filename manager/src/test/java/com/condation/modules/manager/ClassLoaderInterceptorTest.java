@@ -0,0 +1,279 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import com.condation.modules.api.BaseExtension;
+import com.condation.modules.api.Context;
+import com.condation.modules.api.ExtensionPoint;
+import com.condation.modules.api.ModuleRequestContext;
+import java.net.URL;
+import java.net.URLClassLoader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ *
+ * @author thmarx
+ */
+public class ClassLoaderInterceptorTest {
+
+	private URLClassLoader moduleClassLoader;
+	private ClassLoaderInterceptor interceptor;
+	private InFlightCalls inFlight;
+
+	@BeforeEach
+	void setup() {
+		moduleClassLoader = new URLClassLoader(new URL[0], getClass().getClassLoader());
+		interceptor = new ClassLoaderInterceptor(moduleClassLoader);
+		inFlight = new InFlightCalls(4);
+	}
+
+	@AfterEach
+	void close() throws Exception {
+		moduleClassLoader.close();
+	}
+
+	@Test
+	void interface_extension_point_forwards_to_target() throws Exception {
+		GreeterImpl target = new GreeterImpl("target");
+		int constructed = GreeterImpl.constructed;
+
+		Greeter proxy = interceptor.createProxy(Greeter.class, moduleClassLoader, target, inFlight.slots());
+
+		assertThat(proxy).isNotSameAs(target).isNotInstanceOf(GreeterImpl.class);
+		assertThat(GreeterImpl.constructed).isEqualTo(constructed);
+		assertThat(proxy.greet()).isEqualTo("target");
+		assertThat(proxy.contextClassLoader()).isSameAs(moduleClassLoader);
+		assertThat(Thread.currentThread().getContextClassLoader()).isNotSameAs(moduleClassLoader);
+		assertThat(inFlight.isIdle()).isTrue();
+	}
+
+	@Test
+	void running_calls_are_counted() throws Exception {
+		Greeter proxy = interceptor.createProxy(Greeter.class, moduleClassLoader, new GreeterImpl("target"), inFlight.slots());
+
+		assertThat(proxy.inFlight(inFlight)).isEqualTo(1);
+		assertThat(inFlight.isIdle()).isTrue();
+	}
+
+	@Test
+	void exceptions_restore_context_class_loader() throws Exception {
+		Greeter proxy = interceptor.createProxy(Greeter.class, moduleClassLoader, new GreeterImpl("target"), inFlight.slots());
+		ClassLoader original = Thread.currentThread().getContextClassLoader();
+
+		assertThatThrownBy(proxy::fail).isInstanceOf(IllegalStateException.class);
+		assertThat(Thread.currentThread().getContextClassLoader()).isSameAs(original);
+		assertThat(inFlight.isIdle()).isTrue();
+	}
+
+	@Test
+	void class_extension_point_does_not_subclass_target() throws Exception {
+		AbstractGreeterImpl target = new AbstractGreeterImpl();
+		target.name = "target";
+		int constructed = AbstractGreeterImpl.constructed;
+
+		AbstractGreeter proxy = interceptor.createProxy(AbstractGreeter.class, moduleClassLoader, target, inFlight.slots());
+
+		assertThat(proxy).isNotSameAs(target).isInstanceOf(AbstractGreeter.class).isNotInstanceOf(AbstractGreeterImpl.class);
+		assertThat(AbstractGreeterImpl.constructed).isEqualTo(constructed);
+		assertThat(proxy.greet()).isEqualTo("target");
+		assertThat(proxy.contextClassLoader()).isSameAs(moduleClassLoader);
+		assertThat(inFlight.isIdle()).isTrue();
+	}
+
+	@Test
+	void class_extension_point_with_final_extension() throws Exception {
+		AbstractGreeter proxy = interceptor.createProxy(AbstractGreeter.class, moduleClassLoader, new FinalGreeter(), inFlight.slots());
+
+		assertThat(proxy.greet()).isEqualTo("final");
+	}
+
+	@Test
+	void class_extension_point_with_extension_without_noarg_constructor() throws Exception {
+		AbstractGreeter proxy = interceptor.createProxy(AbstractGreeter.class, moduleClassLoader, new NamedGreeter("named"), inFlight.slots());
+
+		assertThat(proxy.greet()).isEqualTo("named");
+	}
+
+	@Test
+	void class_extension_point_without_noarg_constructor_fails() {
+		assertThatThrownBy(() -> interceptor.createProxy(NamedExtensionPoint.class, moduleClassLoader, new NamedExtensionPointImpl(), inFlight.slots()))
+				.isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("no no-arg constructor");
+	}
+
+	@Test
+	void object_methods_are_forwarded_to_target() throws Exception {
+		GreeterImpl target = new GreeterImpl("target");
+
+		Greeter proxy = interceptor.createProxy(Greeter.class, moduleClassLoader, target, inFlight.slots());
+
+		assertThat(proxy.toString()).isEqualTo(target.toString());
+		assertThat(proxy.hashCode()).isEqualTo(target.hashCode());
+		assertThat(proxy.equals(new GreeterImpl("target"))).isTrue();
+		assertThat(proxy.equals(new GreeterImpl("other"))).isFalse();
+		assertThat(inFlight.isIdle()).isTrue();
+	}
+
+	@Test
+	void proxy_classes_are_cached() throws Exception {
+		Greeter first = interceptor.createProxy(Greeter.class, moduleClassLoader, new GreeterImpl("a"), inFlight.slots());
+		Greeter second = interceptor.createProxy(Greeter.class, moduleClassLoader, new GreeterImpl("b"), inFlight.slots());
+
+		assertThat(first.getClass()).isSameAs(second.getClass());
+		assertThat(second.greet()).isEqualTo("b");
+	}
+
+	public interface Greeter extends ExtensionPoint<Context, ModuleRequestContext> {
+
+		String greet();
+
+		ClassLoader contextClassLoader();
+
+		long inFlight(InFlightCalls calls);
+
+		void fail();
+	}
+
+	public static class GreeterImpl extends BaseExtension<Context, ModuleRequestContext> implements Greeter {
+
+		static int constructed;
+
+		private final String name;
+
+		public GreeterImpl(final String name) {
+			this.name = name;
+			constructed++;
+		}
+
+		@Override
+		public void init() {
+		}
+
+		@Override
+		public String greet() {
+			return name;
+		}
+
+		@Override
+		public ClassLoader contextClassLoader() {
+			return Thread.currentThread().getContextClassLoader();
+		}
+
+		@Override
+		public long inFlight(final InFlightCalls calls) {
+			return calls.count();
+		}
+
+		@Override
+		public void fail() {
+			throw new IllegalStateException("fail");
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			return other instanceof GreeterImpl greeter && name.equals(greeter.name);
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return "GreeterImpl[" + name + "]";
+		}
+	}
+
+	public static abstract class AbstractGreeter extends BaseExtension<Context, ModuleRequestContext> {
+
+		public abstract String greet();
+
+		public ClassLoader contextClassLoader() {
+			return Thread.currentThread().getContextClassLoader();
+		}
+
+		@Override
+		public void init() {
+		}
+	}
+
+	public static class AbstractGreeterImpl extends AbstractGreeter {
+
+		static int constructed;
+
+		String name;
+
+		public AbstractGreeterImpl() {
+			constructed++;
+		}
+
+		@Override
+		public String greet() {
+			return name;
+		}
+	}
+
+	public static final class FinalGreeter extends AbstractGreeter {
+
+		@Override
+		public String greet() {
+			return "final";
+		}
+	}
+
+	public static class NamedGreeter extends AbstractGreeter {
+
+		private final String name;
+
+		public NamedGreeter(final String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String greet() {
+			return name;
+		}
+	}
+
+	public static abstract class NamedExtensionPoint extends BaseExtension<Context, ModuleRequestContext> {
+
+		protected NamedExtensionPoint(final String name) {
+		}
+
+		@Override
+		public void init() {
+		}
+	}
+
+	public static class NamedExtensionPointImpl extends NamedExtensionPoint {
+
+		public NamedExtensionPointImpl() {
+			super("impl");
+		}
+	}
+}
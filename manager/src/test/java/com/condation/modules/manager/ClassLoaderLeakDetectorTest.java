@@ -0,0 +1,130 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.lang.ref.Reference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ *
+ * @author thmarx
+ */
+public class ClassLoaderLeakDetectorTest {
+
+	@Test
+	void counts_collections_that_can_unload_classes() {
+		// the notifications of the JDK 21 collectors
+		assertThat(ClassLoaderLeakDetector.halves("G1 Young Generation", "end of minor GC")).isZero();
+		assertThat(ClassLoaderLeakDetector.halves("G1 Old Generation", "end of major GC")).isEqualTo(2);
+		assertThat(ClassLoaderLeakDetector.halves("G1 Concurrent GC", "end of concurrent GC pause")).isEqualTo(1);
+		assertThat(ClassLoaderLeakDetector.halves("PS Scavenge", "end of minor GC")).isZero();
+		assertThat(ClassLoaderLeakDetector.halves("PS MarkSweep", "end of major GC")).isEqualTo(2);
+		assertThat(ClassLoaderLeakDetector.halves("Copy", "end of minor GC")).isZero();
+		assertThat(ClassLoaderLeakDetector.halves("MarkSweepCompact", "end of major GC")).isEqualTo(2);
+		assertThat(ClassLoaderLeakDetector.halves("ZGC Cycles", "end of GC cycle")).isEqualTo(2);
+		assertThat(ClassLoaderLeakDetector.halves("ZGC Pauses", "end of GC pause")).isZero();
+		assertThat(ClassLoaderLeakDetector.halves("ZGC Major Cycles", "end of GC cycle")).isEqualTo(2);
+		assertThat(ClassLoaderLeakDetector.halves("ZGC Minor Cycles", "end of GC cycle")).isZero();
+		assertThat(ClassLoaderLeakDetector.halves("ZGC Major Pauses", "end of GC pause")).isZero();
+		assertThat(ClassLoaderLeakDetector.halves("Shenandoah Cycles", "end of GC cycle")).isEqualTo(2);
+		assertThat(ClassLoaderLeakDetector.halves("Shenandoah Pauses", "Final Mark")).isZero();
+	}
+
+	@Test
+	void unloaded_class_loader_is_expunged_and_not_reported() throws Exception {
+		ClassLoaderLeakDetector detector = new ClassLoaderLeakDetector(1);
+		try {
+			detector.track("dropped", "1.0", new URLClassLoader(new URL[0]));
+			URLClassLoader leaked = new URLClassLoader(new URL[0]);
+			detector.track("leaked", "1.0", leaked);
+
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while ((detector.tracked() > 1 || detector.leaks().isEmpty()) && System.nanoTime() < deadline) {
+				System.gc();
+				Thread.sleep(50);
+			}
+
+			assertThat(detector.tracked()).isEqualTo(1);
+			assertThat(detector.leaks()).extracting(ModuleLeak::moduleId).containsExactly("leaked");
+			Reference.reachabilityFence(leaked);
+		} finally {
+			detector.close();
+		}
+	}
+
+	@Test
+	void leak_names_the_thread_using_the_class_loader() throws Exception {
+		ClassLoaderLeakDetector detector = new ClassLoaderLeakDetector(1);
+		CountDownLatch done = new CountDownLatch(1);
+		URLClassLoader leaked = new URLClassLoader(new URL[0]);
+		Thread holder = new Thread(() -> {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, "leak-holder");
+		holder.setContextClassLoader(leaked);
+		holder.start();
+		try {
+			detector.track("leaked", "1.0", leaked);
+
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (detector.leaks().isEmpty() && System.nanoTime() < deadline) {
+				System.gc();
+				Thread.sleep(50);
+			}
+
+			assertThat(detector.leaks()).singleElement()
+					.satisfies(leak -> assertThat(leak.hints()).contains("context class loader of thread leak-holder"));
+		} finally {
+			done.countDown();
+			holder.join();
+			detector.close();
+		}
+	}
+
+	@Test
+	void enumerates_the_platform_threads() throws Exception {
+		CountDownLatch done = new CountDownLatch(1);
+		Thread thread = new Thread(() -> {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, "enumerated");
+		thread.start();
+		try {
+			assertThat(ClassLoaderLeakDetector.platformThreads()).contains(Thread.currentThread(), thread);
+		} finally {
+			done.countDown();
+			thread.join();
+		}
+	}
+}
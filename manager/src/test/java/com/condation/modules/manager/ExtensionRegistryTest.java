@@ -0,0 +1,142 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import com.condation.modules.api.Context;
+import com.condation.modules.api.ExtensionPoint;
+import com.condation.modules.api.Module.Priority;
+import com.condation.modules.api.ModuleRequestContext;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ *
+ * @author thmarx
+ */
+public class ExtensionRegistryTest {
+
+	@Test
+	void empty_registry_provides_nothing() {
+		ExtensionRegistry registry = new ExtensionRegistry();
+
+		assertThat(registry.providing(Filter.class)).isEmpty();
+	}
+
+	@Test
+	void snapshot_contains_the_providing_modules_in_order() {
+		ExtensionRegistry registry = new ExtensionRegistry();
+		StubModule mod1 = new StubModule("mod1", Filter.class);
+		StubModule mod2 = new StubModule("mod2", Renderer.class);
+		StubModule mod3 = new StubModule("mod3", Filter.class, Renderer.class);
+
+		registry.publish(List.of(mod1, mod2, mod3));
+
+		assertThat(registry.providing(Filter.class)).containsExactly(mod1, mod3);
+		assertThat(registry.providing(Renderer.class)).containsExactly(mod2, mod3);
+	}
+
+	@Test
+	void snapshot_resolves_an_extension_point_once() {
+		ExtensionRegistry registry = new ExtensionRegistry();
+		StubModule mod1 = new StubModule("mod1", Filter.class);
+		registry.publish(List.of(mod1));
+
+		ModuleImpl[] first = registry.providing(Filter.class);
+		ModuleImpl[] second = registry.providing(Filter.class);
+
+		assertThat(second).isSameAs(first);
+		assertThat(mod1.lookups).hasValue(1);
+	}
+
+	@Test
+	void publish_invalidates_the_resolved_extension_points() {
+		ExtensionRegistry registry = new ExtensionRegistry();
+		StubModule mod1 = new StubModule("mod1", Filter.class);
+		StubModule mod2 = new StubModule("mod2", Filter.class);
+		registry.publish(List.of(mod1));
+		ModuleImpl[] before = registry.providing(Filter.class);
+
+		registry.publish(List.of(mod1, mod2));
+
+		assertThat(registry.providing(Filter.class)).containsExactly(mod1, mod2);
+		// a lookup running on the old snapshot keeps its result
+		assertThat(before).containsExactly(mod1);
+		assertThat(mod1.lookups).hasValue(2);
+	}
+
+	@Test
+	void published_modules_are_copied() {
+		ExtensionRegistry registry = new ExtensionRegistry();
+		StubModule mod1 = new StubModule("mod1", Filter.class);
+		List<ModuleImpl> activeModules = new ArrayList<>(List.of(mod1));
+		registry.publish(activeModules);
+
+		activeModules.add(new StubModule("mod2", Filter.class));
+
+		assertThat(registry.providing(Filter.class)).containsExactly(mod1);
+	}
+
+	@Test
+	void publish_of_no_modules_clears_the_registry() {
+		ExtensionRegistry registry = new ExtensionRegistry();
+		registry.publish(List.of(new StubModule("mod1", Filter.class)));
+		registry.providing(Filter.class);
+
+		registry.publish(List.of());
+
+		assertThat(registry.providing(Filter.class)).isEmpty();
+	}
+
+	interface Filter extends ExtensionPoint<Context, ModuleRequestContext> {
+	}
+
+	interface Renderer extends ExtensionPoint<Context, ModuleRequestContext> {
+	}
+
+	/**
+	 * A module providing a fixed set of extension points, counts the lookups.
+	 */
+	static class StubModule extends ModuleImpl {
+
+		private final Set<Class<?>> contracts;
+
+		final AtomicInteger lookups = new AtomicInteger();
+
+		StubModule(final String id, final Class<?>... contracts) {
+			super(new ModuleDescriptor(new File(id), id, id, "1.0", null, null, Priority.NORMAL, List.of()), new File("data"),
+					null, null, null);
+			this.contracts = Set.of(contracts);
+		}
+
+		@Override
+		public boolean provides(final Class<? extends ExtensionPoint> extensionClass) {
+			lookups.incrementAndGet();
+			return contracts.contains(extensionClass);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ *
+ * @author thmarx
+ */
+public class ModuleDescriptorsTest {
+
+	@TempDir
+	Path modulesPath;
+
+	@Test
+	void get_serves_known_descriptors_from_memory() throws Exception {
+		writeModule("mod1", "1.0", 1000);
+		ModuleDescriptors descriptors = new ModuleDescriptors(modulesPath.toFile());
+		assertThat(descriptors.discover()).isEmpty();
+
+		writeModule("mod1", "2.0.0", 2000);
+
+		assertThat(descriptors.get("mod1").version()).isEqualTo("1.0");
+		assertThat(descriptors.refresh("mod1").version()).isEqualTo("2.0.0");
+		assertThat(descriptors.get("mod1").version()).isEqualTo("2.0.0");
+	}
+
+	@Test
+	void discover_reads_changed_descriptors() throws Exception {
+		writeModule("mod1", "1.0", 1000);
+		ModuleDescriptors descriptors = new ModuleDescriptors(modulesPath.toFile());
+		descriptors.discover();
+
+		writeModule("mod1", "2.0.0", 2000);
+		descriptors.discover();
+
+		assertThat(descriptors.get("mod1").version()).isEqualTo("2.0.0");
+	}
+
+	@Test
+	void persisted_cache_drops_unreadable_modules(@TempDir Path dataPath) throws Exception {
+		writeModule("mod1", "1.0", 1000);
+		writeModule("mod2", "1.0", 1000);
+		new ModuleDescriptors(modulesPath.toFile(), dataPath.toFile()).discover();
+
+		Files.delete(modulesPath.resolve("mod2").resolve(ModuleDescriptor.MODULE_PROPERTIES));
+		ModuleDescriptors descriptors = new ModuleDescriptors(modulesPath.toFile(), dataPath.toFile());
+		assertThat(descriptors.discover()).containsOnlyKeys("mod2");
+
+		ModuleDescriptors restarted = new ModuleDescriptors(modulesPath.toFile(), dataPath.toFile());
+		assertThat(restarted.all()).extracting(ModuleDescriptor::id).containsExactly("mod1");
+	}
+
+	@Test
+	void discover_reads_all_modules() throws Exception {
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			writeModule("mod" + i, "1." + i, 1000);
+			ids.add("mod" + i);
+		}
+		ModuleDescriptors descriptors = new ModuleDescriptors(modulesPath.toFile());
+
+		assertThat(descriptors.discover()).isEmpty();
+
+		assertThat(descriptors.all()).extracting(ModuleDescriptor::id).containsExactlyInAnyOrderElementsOf(ids);
+		assertThat(descriptors.get("mod42").version()).isEqualTo("1.42");
+	}
+
+	@Test
+	void discover_reports_unreadable_modules_and_reads_the_others() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			writeModule("mod" + i, "1.0", 1000);
+		}
+		modulesPath.resolve("broken").toFile().mkdirs();
+		ModuleDescriptors descriptors = new ModuleDescriptors(modulesPath.toFile());
+
+		Map<String, IOException> errors = descriptors.discover();
+
+		assertThat(errors).containsOnlyKeys("broken");
+		assertThat(descriptors.all()).hasSize(10);
+	}
+
+	@Test
+	void discover_drops_removed_modules() throws Exception {
+		writeModule("mod1", "1.0", 1000);
+		writeModule("mod2", "1.0", 1000);
+		ModuleDescriptors descriptors = new ModuleDescriptors(modulesPath.toFile());
+		descriptors.discover();
+
+		Files.delete(modulesPath.resolve("mod2").resolve(ModuleDescriptor.MODULE_PROPERTIES));
+		Files.delete(modulesPath.resolve("mod2"));
+		descriptors.discover();
+
+		assertThat(descriptors.all()).extracting(ModuleDescriptor::id).containsExactly("mod1");
+	}
+
+	@Test
+	void concurrent_discovery_persists_all_modules(@TempDir Path dataPath) throws Exception {
+		for (int i = 0; i < 20; i++) {
+			writeModule("mod" + i, "1.0", 1000);
+		}
+		ModuleDescriptors descriptors = new ModuleDescriptors(modulesPath.toFile(), dataPath.toFile());
+
+		int threads = 4;
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Map<String, IOException>>> discoveries = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				discoveries.add(executor.submit(() -> {
+					start.await();
+					return descriptors.discover();
+				}));
+			}
+			start.countDown();
+			for (Future<Map<String, IOException>> discovery : discoveries) {
+				assertThat(discovery.get()).isEmpty();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertThat(descriptors.all()).hasSize(20);
+		ModuleDescriptors restarted = new ModuleDescriptors(modulesPath.toFile(), dataPath.toFile());
+		assertThat(restarted.all()).hasSize(20);
+	}
+
+	private void writeModule(final String id, final String version, final long lastModified) throws IOException {
+		File moduleDir = modulesPath.resolve(id).toFile();
+		moduleDir.mkdirs();
+		Path properties = moduleDir.toPath().resolve(ModuleDescriptor.MODULE_PROPERTIES);
+		Files.writeString(properties, "id=" + id + "\nversion=" + version + "\n");
+		Files.setLastModifiedTime(properties, FileTime.fromMillis(lastModified));
+	}
+}
@@ -0,0 +1,280 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import com.condation.modules.api.BaseExtension;
+import com.condation.modules.api.Context;
+import com.condation.modules.api.ExtensionPoint;
+import com.condation.modules.api.ModuleRequestContext;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ *
+ * @author thmarx
+ */
+public class ModuleImplTest {
+
+	@TempDir
+	Path modulesPath;
+
+	@TempDir
+	Path dataPath;
+
+	private ModuleImpl module;
+
+	@BeforeEach
+	void setup() {
+		SingletonExtension.INSTANCES.set(0);
+		SelfLookupExtension.module = null;
+	}
+
+	@AfterEach
+	void close() throws IOException {
+		if (module != null) {
+			module.close();
+		}
+	}
+
+	@Test
+	void singleton_is_created_once() throws Exception {
+		module = module(SingletonExtension.class.getName() + " # scope=SINGLETON proxy=false");
+
+		Counted first = module.extensions(Counted.class, null).get(0);
+		Counted second = module.extensions(Counted.class, null).get(0);
+
+		assertThat(second).isSameAs(first);
+		assertThat(SingletonExtension.INSTANCES).hasValue(1);
+	}
+
+	@Test
+	void singleton_is_created_once_by_concurrent_lookups() throws Exception {
+		module = module(SingletonExtension.class.getName() + " # scope=SINGLETON proxy=false");
+
+		int threads = 8;
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Counted>> lookups = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				lookups.add(executor.submit(() -> {
+					start.await();
+					return module.extensions(Counted.class, null).get(0);
+				}));
+			}
+			start.countDown();
+
+			Counted first = lookups.get(0).get();
+			for (Future<Counted> lookup : lookups) {
+				assertThat(lookup.get()).isSameAs(first);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertThat(SingletonExtension.INSTANCES).hasValue(1);
+	}
+
+	@Test
+	void singleton_looked_up_from_its_own_init_fails() throws Exception {
+		module = module(SelfLookupExtension.class.getName() + " # scope=SINGLETON proxy=false");
+		SelfLookupExtension.module = module;
+
+		assertThatThrownBy(() -> module.extensions(Counted.class, null))
+				.hasRootCauseInstanceOf(IllegalStateException.class)
+				.hasRootCauseMessage("singleton extension " + SelfLookupExtension.class.getName() + " is looked up from its own init()");
+	}
+
+	@Test
+	void singleton_can_be_looked_up_after_failed_init() throws Exception {
+		module = module(SelfLookupExtension.class.getName() + " # scope=SINGLETON proxy=false");
+		SelfLookupExtension.module = module;
+		assertThatThrownBy(() -> module.extensions(Counted.class, null)).isInstanceOf(RuntimeException.class);
+
+		SelfLookupExtension.module = null;
+
+		assertThat(module.extensions(Counted.class, null)).hasSize(1);
+	}
+
+	@Test
+	void request_scoped_extension_is_created_once_per_request() throws Exception {
+		module = module(RequestExtension.class.getName() + " # scope=REQUEST proxy=false");
+		TestRequestContext request = new TestRequestContext();
+		TestRequestContext otherRequest = new TestRequestContext();
+
+		Counted first = module.extensions(Counted.class, request).get(0);
+		Counted second = module.extensions(Counted.class, request).get(0);
+		Counted other = module.extensions(Counted.class, otherRequest).get(0);
+
+		assertThat(second).isSameAs(first);
+		assertThat(other).isNotSameAs(first);
+		assertThat(((RequestExtension) first).getRequestContext()).isSameAs(request);
+		assertThat(((RequestExtension) other).getRequestContext()).isSameAs(otherRequest);
+	}
+
+	@Test
+	void request_scoped_extension_without_store_is_created_on_every_lookup() throws Exception {
+		module = module(RequestExtension.class.getName() + " # scope=REQUEST proxy=false");
+		ModuleRequestContext request = new ModuleRequestContext() {
+		};
+
+		Counted first = module.extensions(Counted.class, request).get(0);
+		Counted second = module.extensions(Counted.class, request).get(0);
+
+		assertThat(second).isNotSameAs(first);
+	}
+
+	@Test
+	void prototype_is_created_on_every_lookup() throws Exception {
+		module = module(RequestExtension.class.getName() + " # scope=PROTOTYPE proxy=false");
+		TestRequestContext request = new TestRequestContext();
+
+		Counted first = module.extensions(Counted.class, request).get(0);
+		Counted second = module.extensions(Counted.class, request).get(0);
+
+		assertThat(second).isNotSameAs(first);
+		assertThat(request.requestScopedExtensions()).isEmpty();
+	}
+
+	@Test
+	void singletons_are_released_on_close() throws Exception {
+		module = module(SingletonExtension.class.getName() + " # scope=SINGLETON proxy=false");
+		module.extensions(Counted.class, null);
+
+		module.close();
+
+		assertThat(module.extensions(Counted.class, null)).isEmpty();
+	}
+
+	@Test
+	void prepared_archive_module_is_initialized_on_first_lookup() throws Exception {
+		ByteArrayOutputStream jar = new ByteArrayOutputStream();
+		try (ZipOutputStream out = new ZipOutputStream(jar)) {
+			out.putNextEntry(new ZipEntry("META-INF/services/" + Counted.class.getName()));
+			out.write((SingletonExtension.class.getName() + " # scope=SINGLETON proxy=false\n").getBytes(StandardCharsets.UTF_8));
+		}
+		Path archive = modulesPath.resolve("mod1" + ModuleDescriptor.ARCHIVE_EXTENSION);
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(archive))) {
+			out.putNextEntry(new ZipEntry(ModuleDescriptor.MODULE_PROPERTIES));
+			out.write("id=mod1\nversion=1.0\n".getBytes(StandardCharsets.UTF_8));
+			// deflated, the index is read from the stream of the entry
+			out.putNextEntry(new ZipEntry("libs/extensions.jar"));
+			out.write(jar.toByteArray());
+		}
+		module = new ModuleImpl(archive.toFile(), dataPath.toFile(), null, null, null);
+
+		assertThat(module.prepare(new ModuleAPIClassLoader(getClass().getClassLoader(), List.of("com.condation.modules.manager")), false)).isTrue();
+
+		assertThat(module.isInitialized()).isFalse();
+		assertThat(module.provides(Counted.class)).isTrue();
+		assertThat(module.provides(ExtensionPoint.class)).isFalse();
+		assertThat(module.extensions(Counted.class, null)).hasSize(1);
+		assertThat(module.isInitialized()).isTrue();
+	}
+
+	/**
+	 * A module with one jar, the service file lists extensions of this test, they are loaded by the api class loader.
+	 */
+	private ModuleImpl module(final String serviceLine) throws IOException {
+		Path moduleDir = modulesPath.resolve("mod1");
+		Files.createDirectories(moduleDir.resolve("libs"));
+		Files.writeString(moduleDir.resolve(ModuleDescriptor.MODULE_PROPERTIES), "id=mod1\nversion=1.0\n");
+		try (OutputStream bytes = Files.newOutputStream(moduleDir.resolve("libs/extensions.jar"));
+				ZipOutputStream out = new ZipOutputStream(bytes)) {
+			out.putNextEntry(new ZipEntry("META-INF/services/" + Counted.class.getName()));
+			out.write((serviceLine + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+
+		ModuleImpl created = new ModuleImpl(moduleDir.toFile(), dataPath.toFile(), null, null, null);
+		created.init(new ModuleAPIClassLoader(getClass().getClassLoader(), List.of("com.condation.modules.manager")));
+		return created;
+	}
+
+	public interface Counted extends ExtensionPoint<Context, ModuleRequestContext> {
+	}
+
+	public static class SingletonExtension extends BaseExtension<Context, ModuleRequestContext> implements Counted {
+
+		static final AtomicInteger INSTANCES = new AtomicInteger();
+
+		@Override
+		public void init() {
+			INSTANCES.incrementAndGet();
+			try {
+				// keeps concurrent lookups waiting for the singleton
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public static class SelfLookupExtension extends BaseExtension<Context, ModuleRequestContext> implements Counted {
+
+		static volatile ModuleImpl module;
+
+		@Override
+		public void init() {
+			if (module != null) {
+				module.extensions(Counted.class, null);
+			}
+		}
+	}
+
+	public static class RequestExtension extends BaseExtension<Context, ModuleRequestContext> implements Counted {
+
+		@Override
+		public void init() {
+		}
+	}
+
+	static class TestRequestContext implements ModuleRequestContext {
+
+		private final ConcurrentMap<Object, Object> scoped = new ConcurrentHashMap<>();
+
+		@Override
+		public ConcurrentMap<Object, Object> requestScopedExtensions() {
+			return scoped;
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ *
+ * @author thmarx
+ */
+public class ModuleJarTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void reads_stored_and_deflated_entries() throws Exception {
+		File file = writeJar("test.jar", null, Map.of("a/stored.txt", "stored"), Map.of("a/deflated.txt", "deflated"));
+
+		try (ModuleJar jar = ModuleJar.open(file)) {
+			assertThat(text(jar, "a/stored.txt")).isEqualTo("stored");
+			assertThat(text(jar, "a/deflated.txt")).isEqualTo("deflated");
+			assertThat(jar.bytes("a/missing.txt")).isNull();
+			assertThat(jar.names()).contains("a/stored.txt", "a/deflated.txt");
+		}
+	}
+
+	@Test
+	void indexes_the_packages_of_classes() throws Exception {
+		File file = writeJar("test.jar", null, Map.of(), Map.of("a/b/C.class", "", "D.class", "", "META-INF/E.class", ""));
+
+		try (ModuleJar jar = ModuleJar.open(file)) {
+			assertThat(jar.packages()).containsExactlyInAnyOrder("a.b", "");
+		}
+	}
+
+	@Test
+	void multi_release_jar_serves_the_highest_supported_version() throws Exception {
+		Map<String, String> entries = new LinkedHashMap<>();
+		entries.put("a/B.txt", "base");
+		entries.put("META-INF/versions/9/a/B.txt", "9");
+		entries.put("META-INF/versions/11/a/B.txt", "11");
+		entries.put("META-INF/versions/9999/a/B.txt", "9999");
+		entries.put("META-INF/versions/9/a/C.txt", "only 9");
+		File file = writeJar("test.jar", multiRelease(), Map.of(), entries);
+
+		try (ModuleJar jar = ModuleJar.open(file)) {
+			assertThat(text(jar, "a/B.txt")).isEqualTo("11");
+			assertThat(text(jar, "a/C.txt")).isEqualTo("only 9");
+			assertThat(jar.manifest()).isNotNull();
+		}
+	}
+
+	@Test
+	void versioned_entries_are_ignored_without_multi_release_manifest() throws Exception {
+		File file = writeJar("test.jar", new Manifest(), Map.of(),
+				Map.of("a/B.txt", "base", "META-INF/versions/11/a/B.txt", "11"));
+
+		try (ModuleJar jar = ModuleJar.open(file)) {
+			assertThat(text(jar, "a/B.txt")).isEqualTo("base");
+		}
+	}
+
+	@Test
+	void reads_stored_and_deflated_nested_jars() throws Exception {
+		byte[] inner = jarBytes(null, Map.of("inner.txt", "inner"), Map.of());
+		File file = dir.resolve("test.module").toFile();
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(file.toPath()))) {
+			putStored(out, "libs/stored.jar", inner);
+			out.putNextEntry(new ZipEntry("libs/deflated.jar"));
+			out.write(inner);
+			out.closeEntry();
+		}
+
+		try (ModuleJar archive = ModuleJar.open(file)) {
+			for (String name : new String[]{"libs/stored.jar", "libs/deflated.jar"}) {
+				try (ModuleJar nested = archive.nested(name)) {
+					assertThat(text(nested, "inner.txt")).isEqualTo("inner");
+					assertThat(nested.location().toString()).isEqualTo("jar:" + file.toURI().toURL() + "!/" + name);
+				}
+			}
+			assertThatThrownBy(() -> archive.nested("libs/missing.jar")).isInstanceOf(IOException.class);
+		}
+	}
+
+	@Test
+	void rejects_zip64_archives() throws Exception {
+		File file = dir.resolve("zip64.jar").toFile();
+		try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath())))) {
+			// more than 0xFFFF entries need the zip64 end of central directory
+			for (int i = 0; i < 0x10000; i++) {
+				putStored(out, "e" + i, new byte[0]);
+			}
+		}
+
+		assertThatThrownBy(() -> ModuleJar.open(file)).isInstanceOf(IOException.class).hasMessageContaining("zip64");
+	}
+
+	@Test
+	void rejects_signed_jars() throws Exception {
+		File file = writeJar("signed.jar", new Manifest(), Map.of(),
+				Map.of("META-INF/TEST.SF", "Signature-Version: 1.0\n", "META-INF/TEST.RSA", "", "a/B.txt", "b"));
+
+		assertThatThrownBy(() -> ModuleJar.open(file)).isInstanceOf(IOException.class).hasMessageContaining("signed");
+	}
+
+	@Test
+	void rejects_files_that_are_no_zip() throws Exception {
+		File file = dir.resolve("broken.jar").toFile();
+		Files.writeString(file.toPath(), "no zip file");
+
+		assertThatThrownBy(() -> ModuleJar.open(file)).isInstanceOf(IOException.class);
+		assertThatThrownBy(() -> ModuleJar.openFile(file)).isInstanceOf(IOException.class);
+	}
+
+	@Test
+	void entry_urls_are_encoded_and_readable() throws Exception {
+		File file = writeJar("test.jar", null, Map.of(), Map.of("a b/ü.txt", "content"));
+
+		try (ModuleJar jar = ModuleJar.open(file)) {
+			URL url = jar.url("a b/ü.txt");
+			assertThat(url.toString()).endsWith("!/a%20b/%C3%BC.txt");
+			assertThat(url.toURI().getSchemeSpecificPart()).endsWith("!/a b/ü.txt");
+			try (InputStream in = url.openStream()) {
+				assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("content");
+			}
+			assertThat(jar.url("missing.txt")).isNull();
+		}
+	}
+
+	@Test
+	void reads_fail_after_close() throws Exception {
+		File file = writeJar("test.jar", null, Map.of(), Map.of("a.txt", "a"));
+
+		ModuleJar jar = ModuleJar.open(file);
+		URL url = jar.url("a.txt");
+		jar.close();
+
+		assertThatThrownBy(() -> jar.bytes("a.txt")).isInstanceOf(IOException.class);
+		assertThatThrownBy(() -> url.openStream()).isInstanceOf(IOException.class);
+	}
+
+	@Test
+	void file_jar_reads_the_replaced_file() throws Exception {
+		File file = writeJar("test.jar", null, Map.of(), Map.of("a.txt", "original"));
+
+		try (ModuleJar jar = ModuleJar.openFile(file)) {
+			File update = writeJar("update.jar", null, Map.of(), Map.of("a.txt", "update"));
+			Files.move(update.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			assertThat(text(jar, "a.txt")).isEqualTo("original");
+		}
+	}
+
+	@Test
+	void file_jar_truncated_in_place_fails_with_io_exception() throws Exception {
+		File file = writeJar("test.jar", null, Map.of(), Map.of("a.txt", "original"));
+
+		try (ModuleJar jar = ModuleJar.openFile(file)) {
+			Files.write(file.toPath(), new byte[0]);
+
+			assertThatThrownBy(() -> jar.bytes("a.txt")).isInstanceOf(IOException.class);
+		}
+	}
+
+	@Test
+	void file_jar_reads_stored_and_deflated_nested_jars() throws Exception {
+		byte[] inner = jarBytes(null, Map.of("inner.txt", "inner"), Map.of());
+		File file = dir.resolve("test.module").toFile();
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(file.toPath()))) {
+			putStored(out, "libs/stored.jar", inner);
+			out.putNextEntry(new ZipEntry("libs/deflated.jar"));
+			out.write(inner);
+			out.closeEntry();
+		}
+
+		try (ModuleJar archive = ModuleJar.openFile(file)) {
+			for (String name : new String[]{"libs/stored.jar", "libs/deflated.jar"}) {
+				try (ModuleJar nested = archive.nested(name)) {
+					assertThat(text(nested, "inner.txt")).isEqualTo("inner");
+				}
+			}
+		}
+	}
+
+	@Test
+	void file_jar_can_be_read_by_an_interrupted_thread() throws Exception {
+		File file = writeJar("test.jar", null, Map.of(), Map.of("a.txt", "a", "b.txt", "b"));
+
+		try (ModuleJar jar = ModuleJar.openFile(file)) {
+			Thread.currentThread().interrupt();
+			try {
+				assertThat(text(jar, "a.txt")).isEqualTo("a");
+				assertThat(Thread.currentThread().isInterrupted()).isTrue();
+			} finally {
+				Thread.interrupted();
+			}
+			assertThat(text(jar, "b.txt")).isEqualTo("b");
+		}
+	}
+
+	private static String text(final ModuleJar jar, final String name) throws IOException {
+		return new String(jar.bytes(name), StandardCharsets.UTF_8);
+	}
+
+	private static Manifest multiRelease() {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MULTI_RELEASE, "true");
+		return manifest;
+	}
+
+	private File writeJar(final String name, final Manifest manifest, final Map<String, String> stored,
+			final Map<String, String> deflated) throws IOException {
+		File file = dir.resolve(name).toFile();
+		Files.write(file.toPath(), jarBytes(manifest, stored, deflated));
+		return file;
+	}
+
+	private static byte[] jarBytes(final Manifest manifest, final Map<String, String> stored,
+			final Map<String, String> deflated) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream out = open(bytes, manifest)) {
+			for (Map.Entry<String, String> entry : stored.entrySet()) {
+				putStored(out, entry.getKey(), entry.getValue().getBytes(StandardCharsets.UTF_8));
+			}
+			for (Map.Entry<String, String> entry : deflated.entrySet()) {
+				out.putNextEntry(new ZipEntry(entry.getKey()));
+				out.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+				out.closeEntry();
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private static ZipOutputStream open(final OutputStream out, final Manifest manifest) throws IOException {
+		if (manifest == null) {
+			return new ZipOutputStream(out);
+		}
+		manifest.getMainAttributes().putIfAbsent(Attributes.Name.MANIFEST_VERSION, "1.0");
+		return new JarOutputStream(out, manifest);
+	}
+
+	private static void putStored(final ZipOutputStream out, final String name, final byte[] content) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		ZipEntry entry = new ZipEntry(name);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(content.length);
+		entry.setCompressedSize(content.length);
+		entry.setCrc(crc.getValue());
+		out.putNextEntry(entry);
+		out.write(content);
+		out.closeEntry();
+	}
+}
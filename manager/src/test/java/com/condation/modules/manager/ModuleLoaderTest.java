@@ -0,0 +1,459 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import com.condation.modules.api.BaseExtension;
+import com.condation.modules.api.Context;
+import com.condation.modules.api.ExtensionPoint;
+import com.condation.modules.api.ManagerConfiguration;
+import com.condation.modules.api.ModuleRequestContext;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ *
+ * @author thmarx
+ */
+public class ModuleLoaderTest {
+
+	@TempDir
+	Path modulesPath;
+
+	@TempDir
+	Path dataPath;
+
+	private ManagerConfiguration configuration;
+
+	private ModuleLoader loader;
+
+	@BeforeEach
+	void setup() {
+		configuration = new ManagerConfiguration();
+		ModuleAPIClassLoader apiClassLoader = new ModuleAPIClassLoader(getClass().getClassLoader(), List.of());
+		loader = new ModuleLoader(configuration, modulesPath.toFile(), dataPath.toFile(), apiClassLoader, null, null, null,
+				new ModuleDescriptors(modulesPath.toFile()), 1, false, Duration.ofMillis(100), Duration.ofSeconds(10), null, false, false);
+	}
+
+	@Test
+	void changed_module_is_reloaded() throws Exception {
+		install("mod1", "1.0", "", 1000);
+		activate("mod1");
+
+		install("mod1", "2.0", "", 2000);
+		loader.modulesChanged(Set.of("mod1"));
+
+		assertThat(loader.activeModules().get("mod1").getVersion()).isEqualTo("2.0");
+		assertThat(configuration.get("mod1").isActive()).isTrue();
+	}
+
+	@Test
+	void module_with_an_invalid_descriptor_stays_deactivated() throws Exception {
+		install("mod1", "1.0", "", 1000);
+		activate("mod1");
+
+		Path properties = modulesPath.resolve("mod1").resolve(ModuleDescriptor.MODULE_PROPERTIES);
+		Files.writeString(properties, "id=mod1\nversion=2.0\npriority=URGENT\n");
+		Files.setLastModifiedTime(properties, FileTime.fromMillis(2000));
+		loader.modulesChanged(Set.of("mod1"));
+
+		assertThat(loader.activeModules()).isEmpty();
+		assertThat(configuration.get("mod1").isActive()).isTrue();
+	}
+
+	@Test
+	void new_module_is_registered_inactive() throws Exception {
+		install("mod1", "1.0", "", 1000);
+		loader.modulesChanged(Set.of("mod1"));
+
+		assertThat(configuration.get("mod1").getModuleDir()).isEqualTo("mod1");
+		assertThat(configuration.get("mod1").isActive()).isFalse();
+		assertThat(loader.activeModules()).isEmpty();
+	}
+
+	@Test
+	void deleted_module_is_deactivated_and_removed() throws Exception {
+		install("mod1", "1.0", "", 1000);
+		install("mod2", "1.0", "mod1#1.0", 1000);
+		activate("mod1");
+		activate("mod2");
+		ModuleImpl mod1 = loader.activeModules().get("mod1");
+
+		delete(modulesPath.resolve("mod1").toFile());
+		loader.modulesChanged(Set.of("mod1"));
+
+		assertThat(configuration.get("mod1")).isNull();
+		assertThat(loader.activeModules()).isEmpty();
+		assertThat(mod1.isClosed()).isTrue();
+		assertThat(configuration.get("mod2").isActive()).isFalse();
+	}
+
+	@Test
+	void dependent_of_reinstalled_module_can_be_activated_again() throws Exception {
+		install("mod1", "1.0", "", 1000);
+		install("mod2", "1.0", "mod1#1.0", 1000);
+		activate("mod1");
+		activate("mod2");
+
+		delete(modulesPath.resolve("mod1").toFile());
+		loader.modulesChanged(Set.of("mod1"));
+		install("mod1", "1.1", "", 2000);
+		loader.modulesChanged(Set.of("mod1"));
+
+		assertThat(configuration.get("mod1").isActive()).isFalse();
+		assertThat(configuration.get("mod2").isActive()).isFalse();
+		assertThat(loader.activeModules()).isEmpty();
+
+		assertThat(loader.activateModule("mod1")).isTrue();
+		assertThat(loader.activateModule("mod2")).isTrue();
+		assertThat(loader.activeModules()).containsOnlyKeys("mod1", "mod2");
+		assertThat(loader.activeModules().get("mod1").getVersion()).isEqualTo("1.1");
+		assertThat(configuration.get("mod2").isActive()).isTrue();
+	}
+
+	@Test
+	void module_with_running_calls_is_closed_when_they_are_done() throws Exception {
+		install("mod1", "1.0", "", 1000);
+		activate("mod1");
+		ModuleImpl mod1 = loader.activeModules().get("mod1");
+		AtomicLongArray calls = runningCalls(mod1);
+		calls.incrementAndGet(InFlightCalls.STARTED);
+
+		loader.deactivateModule("mod1");
+
+		assertThat(loader.activeModules()).isEmpty();
+		assertThat(mod1.isClosed()).isFalse();
+
+		calls.incrementAndGet(InFlightCalls.FINISHED);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!mod1.isClosed() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(mod1.isClosed()).isTrue();
+	}
+
+	@Test
+	void module_with_running_calls_is_closed_after_the_close_timeout() throws Exception {
+		loader = new ModuleLoader(configuration, modulesPath.toFile(), dataPath.toFile(),
+				new ModuleAPIClassLoader(getClass().getClassLoader(), List.of()), null, null, null,
+				new ModuleDescriptors(modulesPath.toFile()), 1, false, Duration.ofMillis(50), Duration.ofMillis(200), null, false, false);
+		install("mod1", "1.0", "", 1000);
+		activate("mod1");
+		ModuleImpl mod1 = loader.activeModules().get("mod1");
+		runningCalls(mod1).incrementAndGet(InFlightCalls.STARTED);
+
+		loader.deactivateModule("mod1");
+
+		assertThat(mod1.isClosed()).isFalse();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!mod1.isClosed() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(mod1.isClosed()).isTrue();
+	}
+
+	@Test
+	void draining_modules_are_closed_with_the_loader() throws Exception {
+		install("mod1", "1.0", "", 1000);
+		activate("mod1");
+		ModuleImpl mod1 = loader.activeModules().get("mod1");
+		runningCalls(mod1).incrementAndGet(InFlightCalls.STARTED);
+
+		loader.deactivateModule("mod1");
+		assertThat(mod1.isClosed()).isFalse();
+
+		loader.closeDrainingModules();
+		assertThat(mod1.isClosed()).isTrue();
+	}
+
+	@Test
+	void idle_module_is_closed_on_deactivation() throws Exception {
+		install("mod1", "1.0", "", 1000);
+		activate("mod1");
+		ModuleImpl mod1 = loader.activeModules().get("mod1");
+
+		loader.deactivateModule("mod1");
+
+		assertThat(mod1.isClosed()).isTrue();
+	}
+
+	@Test
+	void modules_are_activated_while_a_deactivated_module_drains() throws Exception {
+		loader = new ModuleLoader(configuration, modulesPath.toFile(), dataPath.toFile(),
+				new ModuleAPIClassLoader(getClass().getClassLoader(), List.of()), null, null, null,
+				new ModuleDescriptors(modulesPath.toFile()), 1, false, Duration.ofSeconds(10), Duration.ofSeconds(10), null, false, false);
+		install("mod1", "1.0", "", 1000);
+		install("mod2", "1.0", "", 1000);
+		activate("mod1");
+		ModuleImpl mod1 = loader.activeModules().get("mod1");
+		AtomicLongArray calls = runningCalls(mod1);
+		calls.incrementAndGet(InFlightCalls.STARTED);
+
+		Thread deactivation = Thread.ofVirtual().start(() -> {
+			try {
+				loader.deactivateModule("mod1");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		while (loader.activeModules().containsKey("mod1")) {
+			Thread.sleep(10);
+		}
+		activate("mod2");
+
+		assertThat(deactivation.isAlive()).isTrue();
+		assertThat(mod1.extensions(ExtensionPoint.class)).isEmpty();
+		calls.incrementAndGet(InFlightCalls.FINISHED);
+		deactivation.join();
+		assertThat(mod1.isClosed()).isTrue();
+		assertThat(mod1.provides(ExtensionPoint.class)).isFalse();
+		assertThat(mod1.extensions(ExtensionPoint.class)).isEmpty();
+	}
+
+	@Test
+	void lazy_module_that_can_not_be_initialized_is_closed() throws Exception {
+		loader = new ModuleLoader(configuration, modulesPath.toFile(), dataPath.toFile(),
+				new ModuleAPIClassLoader(getClass().getClassLoader(), List.of()), null, null, null,
+				new ModuleDescriptors(modulesPath.toFile()), 1, false, Duration.ofMillis(100), Duration.ofSeconds(10), null, true, false);
+		Path archive = modulesPath.resolve("mod1.module");
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(archive))) {
+			out.putNextEntry(new ZipEntry(ModuleDescriptor.MODULE_PROPERTIES));
+			out.write("id=mod1\nversion=1.0\n".getBytes(StandardCharsets.UTF_8));
+			out.putNextEntry(new ZipEntry("libs/mod1.jar"));
+			out.write(serviceJar(ExtensionPoint.class.getName()));
+		}
+		configuration.add(new ManagerConfiguration.ModuleConfig("mod1").setModuleDir("mod1.module"));
+		assertThat(loader.activateModule("mod1")).isTrue();
+		ModuleImpl mod1 = loader.activeModules().get("mod1");
+		assertThat(mod1.isInitialized()).isFalse();
+		assertThat(mod1.provides(ExtensionPoint.class)).isTrue();
+
+		Files.writeString(archive, "no zip file");
+
+		assertThat(mod1.extensions(ExtensionPoint.class)).isEmpty();
+		assertThat(mod1.isClosed()).isTrue();
+		assertThat(mod1.provides(ExtensionPoint.class)).isFalse();
+	}
+
+	@Test
+	void lookups_running_during_upgrades_do_not_fail() throws Exception {
+		// closed right away, lookups still running on the old version race with close
+		loader = new ModuleLoader(configuration, modulesPath.toFile(), dataPath.toFile(),
+				new ModuleAPIClassLoader(getClass().getClassLoader(), List.of("com.condation.modules.manager")), null, null, null,
+				new ModuleDescriptors(modulesPath.toFile()), 1, false, Duration.ZERO, Duration.ZERO, null, false, false);
+		installGreeting("mod1", 1);
+		activate("mod1");
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+		List<Thread> lookups = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			lookups.add(Thread.ofVirtual().start(() -> {
+				while (running.get()) {
+					try {
+						for (ModuleImpl module : loader.extensionRegistry.providing(Greeting.class)) {
+							module.extensions(Greeting.class, null);
+						}
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			}));
+		}
+		try {
+			for (int version = 2; version <= 20; version++) {
+				installGreeting("mod1", version);
+				assertThat(loader.upgradeModule("mod1")).isTrue();
+			}
+		} finally {
+			running.set(false);
+			for (Thread lookup : lookups) {
+				lookup.join();
+			}
+		}
+
+		assertThat(failures).isEmpty();
+		assertThat(loader.activeModules().get("mod1").getVersion()).isEqualTo("20.0");
+	}
+
+	@Test
+	void module_without_configuration_is_activated_from_its_directory() throws Exception {
+		install("mod1", "1.0", "", 1000);
+
+		assertThat(loader.activateModule("mod1")).isTrue();
+
+		assertThat(loader.activeModules()).containsKey("mod1");
+		assertThat(configuration.get("mod1").isActive()).isTrue();
+		assertThat(configuration.get("mod1").getModuleDir()).isEqualTo("mod1");
+	}
+
+	@Test
+	void deactivation_waits_for_a_running_lookup() throws Exception {
+		loader = new ModuleLoader(configuration, modulesPath.toFile(), dataPath.toFile(),
+				new ModuleAPIClassLoader(getClass().getClassLoader(), List.of("com.condation.modules.manager")), null, null, null,
+				new ModuleDescriptors(modulesPath.toFile()), 1, false, Duration.ofSeconds(10), Duration.ofSeconds(10), null, false, false);
+		installGreeting("mod1", 1, BlockingGreeting.class);
+		activate("mod1");
+		ModuleImpl mod1 = loader.activeModules().get("mod1");
+		BlockingGreeting.reset();
+
+		List<Greeting> found = new ArrayList<>();
+		Thread lookup = Thread.ofVirtual().start(() -> found.addAll(mod1.extensions(Greeting.class, null)));
+		assertThat(BlockingGreeting.initializing.await(5, TimeUnit.SECONDS)).isTrue();
+
+		Thread deactivation = Thread.ofVirtual().start(() -> {
+			try {
+				loader.deactivateModule("mod1");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		while (loader.activeModules().containsKey("mod1")) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(100);
+		assertThat(mod1.isClosed()).isFalse();
+
+		BlockingGreeting.release.countDown();
+		lookup.join();
+		deactivation.join();
+		assertThat(found).hasSize(1);
+		assertThat(mod1.isClosed()).isTrue();
+	}
+
+	private void installGreeting(final String id, final int version) throws IOException {
+		installGreeting(id, version, GreetingExtension.class);
+	}
+
+	/**
+	 * Installs a version of a module providing a {@link Greeting}. Every version gets a jar of its own, the jar of the
+	 * previous version is deleted.
+	 */
+	private void installGreeting(final String id, final int version, final Class<? extends Greeting> implementation) throws IOException {
+		install(id, version + ".0", "", 1000 + version);
+		Path libs = modulesPath.resolve(id).resolve("libs");
+		Files.deleteIfExists(libs.resolve(id + "-" + (version - 1) + ".jar"));
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(libs.resolve(id + "-" + version + ".jar")))) {
+			out.putNextEntry(new ZipEntry("META-INF/services/" + Greeting.class.getName()));
+			out.write((implementation.getName() + " # scope=PROTOTYPE\n").getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	public interface Greeting extends ExtensionPoint<Context, ModuleRequestContext> {
+	}
+
+	public static class GreetingExtension extends BaseExtension<Context, ModuleRequestContext> implements Greeting {
+
+		@Override
+		public void init() {
+		}
+	}
+
+	/**
+	 * Blocks in init() until released.
+	 */
+	public static class BlockingGreeting extends BaseExtension<Context, ModuleRequestContext> implements Greeting {
+
+		static volatile CountDownLatch initializing;
+
+		static volatile CountDownLatch release;
+
+		static void reset() {
+			initializing = new CountDownLatch(1);
+			release = new CountDownLatch(1);
+		}
+
+		@Override
+		public void init() {
+			initializing.countDown();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static byte[] serviceJar(final String contract) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+			out.putNextEntry(new ZipEntry("META-INF/services/" + contract));
+			out.write("mod.Extension\n".getBytes(StandardCharsets.UTF_8));
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * The counters of the extension proxies of a module.
+	 */
+	private static AtomicLongArray runningCalls(final ModuleImpl module) throws ReflectiveOperationException {
+		Field field = ModuleImpl.class.getDeclaredField("inFlight");
+		field.setAccessible(true);
+		return ((InFlightCalls) field.get(module)).slots();
+	}
+
+	private void activate(final String id) throws IOException {
+		configuration.add(new ManagerConfiguration.ModuleConfig(id).setModuleDir(id));
+		assertThat(loader.activateModule(id)).isTrue();
+	}
+
+	private void install(final String id, final String version, final String dependencies, final long lastModified) throws IOException {
+		File moduleDir = modulesPath.resolve(id).toFile();
+		new File(moduleDir, "libs").mkdirs();
+		Path properties = moduleDir.toPath().resolve(ModuleDescriptor.MODULE_PROPERTIES);
+		Files.writeString(properties, "id=" + id + "\nversion=" + version + "\ndependencies=" + dependencies + "\n");
+		Files.setLastModifiedTime(properties, FileTime.fromMillis(lastModified));
+	}
+
+	private static void delete(final File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
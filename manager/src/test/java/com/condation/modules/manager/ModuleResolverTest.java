@@ -0,0 +1,130 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import com.condation.modules.api.Module.Priority;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ *
+ * @author thmarx
+ */
+public class ModuleResolverTest {
+
+	@Test
+	void levels_follow_dependencies() {
+		ModuleResolver.Resolution resolution = ModuleResolver.resolve(List.of(
+				module("d", "b", "c"),
+				module("b", "a"),
+				module("c", "a"),
+				module("a")), id -> false);
+
+		assertThat(resolution.unresolvable()).isEmpty();
+		assertThat(ids(resolution)).containsExactly(List.of("a"), List.of("b", "c"), List.of("d"));
+	}
+
+	@Test
+	void higher_priority_first_within_a_level() {
+		ModuleResolver.Resolution resolution = ModuleResolver.resolve(List.of(
+				module("a", Priority.NORMAL),
+				module("b", Priority.HIGHEST),
+				module("c", Priority.HIGH)), id -> false);
+
+		assertThat(ids(resolution)).containsExactly(List.of("b", "c", "a"));
+	}
+
+	@Test
+	void available_dependencies_are_fulfilled() {
+		ModuleResolver.Resolution resolution = ModuleResolver.resolve(List.of(module("b", "a")), Set.of("a")::contains);
+
+		assertThat(resolution.unresolvable()).isEmpty();
+		assertThat(ids(resolution)).containsExactly(List.of("b"));
+	}
+
+	@Test
+	void missing_dependency_fails_module_and_dependents() {
+		ModuleResolver.Resolution resolution = ModuleResolver.resolve(List.of(
+				module("a"),
+				module("b", "missing"),
+				module("c", "b"),
+				module("d", "c", "a")), id -> false);
+
+		assertThat(ids(resolution)).containsExactly(List.of("a"));
+		assertThat(resolution.unresolvable())
+				.containsEntry("b", "missing dependency missing")
+				.containsEntry("c", "depends on unresolvable module b")
+				.containsEntry("d", "depends on unresolvable module c");
+	}
+
+	@Test
+	void cycle_and_dependents_are_unresolvable() {
+		ModuleResolver.Resolution resolution = ModuleResolver.resolve(List.of(
+				module("a"),
+				module("b", "c", "a"),
+				module("c", "b"),
+				module("d", "c")), id -> false);
+
+		assertThat(ids(resolution)).containsExactly(List.of("a"));
+		assertThat(resolution.unresolvable()).containsOnlyKeys("b", "c", "d");
+		assertThat(resolution.unresolvable().get("b")).isEqualTo("dependency cycle, waiting for [c]");
+		assertThat(resolution.unresolvable().get("d")).isEqualTo("dependency cycle, waiting for [c]");
+	}
+
+	@Test
+	void self_dependency_is_a_cycle() {
+		ModuleResolver.Resolution resolution = ModuleResolver.resolve(List.of(module("a", "a")), id -> false);
+
+		assertThat(resolution.levels()).isEmpty();
+		assertThat(resolution.unresolvable()).containsEntry("a", "dependency cycle, waiting for [a]");
+	}
+
+	@Test
+	void duplicate_dependencies_count_once() {
+		ModuleResolver.Resolution resolution = ModuleResolver.resolve(List.of(
+				module("a"),
+				module("b", "a", "a")), id -> false);
+
+		assertThat(ids(resolution)).containsExactly(List.of("a"), List.of("b"));
+	}
+
+	private static List<List<String>> ids(final ModuleResolver.Resolution resolution) {
+		return resolution.levels().stream().map(level -> level.stream().map(ModuleImpl::getId).toList()).toList();
+	}
+
+	private static ModuleImpl module(final String id, final String... dependencies) {
+		return module(id, Priority.NORMAL, dependencies);
+	}
+
+	private static ModuleImpl module(final String id, final Priority priority, final String... dependencies) {
+		List<ModuleImpl.Dependency> dependencyList = Arrays.stream(dependencies)
+				.map(dependency -> new ModuleImpl.Dependency(dependency, "1"))
+				.toList();
+		ModuleDescriptor descriptor = new ModuleDescriptor(new File(id), id, id, "1", null, null, priority, dependencyList);
+		return new ModuleImpl(descriptor, new File("data"), null, null, null);
+	}
+}
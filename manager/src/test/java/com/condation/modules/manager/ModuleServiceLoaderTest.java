@@ -0,0 +1,108 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ *
+ * @author thmarx
+ */
+public class ModuleServiceLoaderTest {
+
+	@TempDir
+	Path classes;
+
+	private URLClassLoader loader;
+
+	@AfterEach
+	void close() throws IOException {
+		if (loader != null) {
+			loader.close();
+		}
+	}
+
+	@Test
+	void extensions_without_factory_are_created_by_their_constructor() throws Exception {
+		ModuleServiceLoader serviceLoader = serviceLoader(Plain.class.getName(), Hidden.class.getName());
+
+		List<ModuleServiceLoader.Provider<?>> providers = serviceLoader.providers(Contract.class);
+
+		assertThat(providers).extracting(ModuleServiceLoader.Provider::type).containsExactly(Plain.class, Hidden.class);
+		for (ModuleServiceLoader.Provider<?> provider : providers) {
+			Object first = provider.get();
+			assertThat(first).isInstanceOf(provider.type());
+			assertThat(provider.get()).isNotSameAs(first);
+		}
+	}
+
+	@Test
+	void missing_factory_falls_back_to_the_constructor() throws Exception {
+		ModuleServiceLoader serviceLoader = serviceLoader(Plain.class.getName() + " # factory=true");
+
+		assertThat(serviceLoader.get(Contract.class)).singleElement().isInstanceOf(Plain.class);
+	}
+
+	@Test
+	void extensions_without_noarg_constructor_are_skipped() throws Exception {
+		ModuleServiceLoader serviceLoader = serviceLoader(Named.class.getName(), Plain.class.getName());
+
+		assertThat(serviceLoader.providers(Contract.class)).extracting(ModuleServiceLoader.Provider::type)
+				.containsExactly(Plain.class);
+	}
+
+	private ModuleServiceLoader serviceLoader(final String... lines) throws IOException {
+		Path serviceFile = classes.resolve(ModuleServiceLoader.PREFIX + Contract.class.getName());
+		Files.createDirectories(serviceFile.getParent());
+		Files.write(serviceFile, List.of(lines));
+		loader = new URLClassLoader(new URL[]{classes.toUri().toURL()}, getClass().getClassLoader());
+		return ModuleServiceLoader.createLocal(loader);
+	}
+
+	public interface Contract {
+	}
+
+	public static class Plain implements Contract {
+	}
+
+	public static class Hidden implements Contract {
+
+		private Hidden() {
+		}
+	}
+
+	public static class Named implements Contract {
+
+		public Named(final String name) {
+		}
+	}
+}
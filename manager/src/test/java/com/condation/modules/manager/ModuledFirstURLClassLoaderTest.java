@@ -0,0 +1,322 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import net.bytebuddy.ByteBuddy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ *
+ * @author thmarx
+ */
+public class ModuledFirstURLClassLoaderTest {
+
+	@TempDir
+	Path dir;
+
+	private CountingClassLoader loader;
+
+	@AfterEach
+	void close() throws IOException {
+		if (loader != null) {
+			loader.close();
+		}
+	}
+
+	@Test
+	void local_classes_are_defined_by_the_module_loader() throws Exception {
+		loader = loader(Map.of(classEntry(Local.class), classBytes(Local.class)));
+
+		Class<?> local = loader.loadClass(Local.class.getName());
+
+		assertThat(local.getClassLoader()).isSameAs(loader);
+		assertThat(local).isNotSameAs(Local.class);
+		assertThat(loader.loadClass(Local.class.getName())).isSameAs(local);
+		assertThat(loader.findClassCalls(Local.class.getName())).isEqualTo(1);
+	}
+
+	@Test
+	void classes_outside_local_packages_are_not_searched_locally() throws Exception {
+		loader = loader(Map.of(classEntry(Local.class), classBytes(Local.class)));
+
+		assertThat(loader.loadClass(com.condation.modules.api.Module.class.getName()))
+				.isSameAs(com.condation.modules.api.Module.class);
+		assertThatThrownBy(() -> loader.loadClass("org.example.Missing")).isInstanceOf(ClassNotFoundException.class);
+
+		assertThat(loader.findClassCalls()).isEmpty();
+	}
+
+	@Test
+	void misses_in_local_packages_are_cached() throws Exception {
+		loader = loader(Map.of(classEntry(Local.class), classBytes(Local.class)));
+		String missing = ModuledFirstURLClassLoaderTest.class.getPackageName() + ".Missing";
+
+		assertThatThrownBy(() -> loader.loadClass(missing)).isInstanceOf(ClassNotFoundException.class);
+		assertThatThrownBy(() -> loader.loadClass(missing)).isInstanceOf(ClassNotFoundException.class);
+
+		assertThat(loader.findClassCalls(missing)).isEqualTo(1);
+	}
+
+	@Test
+	void module_classes_in_system_packages_are_loaded_if_the_host_has_none() throws Exception {
+		String name = "org.objectweb.asm.ModuleOnly";
+		byte[] bytes = new ByteBuddy().subclass(Object.class).name(name).make().getBytes();
+		loader = loader(Map.of(name.replace('.', '/') + ".class", bytes));
+
+		Class<?> moduleOnly = loader.loadClass(name);
+
+		assertThat(moduleOnly.getClassLoader()).isSameAs(loader);
+		assertThat(loader.loadClass(String.class.getName())).isSameAs(String.class);
+		assertThatThrownBy(() -> loader.loadClass("org.objectweb.asm.Missing")).isInstanceOf(ClassNotFoundException.class);
+	}
+
+	@Test
+	void loaders_are_parallel_capable() throws Exception {
+		loader = loader(Map.of(classEntry(Local.class), classBytes(Local.class)));
+		ModuledFirstURLClassLoader plain = new ModuledFirstURLClassLoader(loader.getURLs(),
+				new ModuleAPIClassLoader(getClass().getClassLoader(), List.of()));
+
+		try (plain) {
+			assertThat(plain.isRegisteredAsParallelCapable()).isTrue();
+		}
+		assertThat(new ModuleAPIClassLoader(getClass().getClassLoader(), List.of()).isRegisteredAsParallelCapable()).isTrue();
+	}
+
+	@Test
+	void concurrent_loads_define_a_class_once() throws Exception {
+		loader = loader(Map.of(classEntry(Local.class), classBytes(Local.class)));
+		List<Class<?>> loaded = Collections.synchronizedList(new ArrayList<>());
+
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			CountDownLatch start = new CountDownLatch(1);
+			for (int i = 0; i < 32; i++) {
+				executor.execute(() -> {
+					try {
+						start.await();
+						loaded.add(loader.loadClass(Local.class.getName()));
+					} catch (InterruptedException | ClassNotFoundException e) {
+						throw new IllegalStateException(e);
+					}
+				});
+			}
+			start.countDown();
+		}
+
+		assertThat(loaded).hasSize(32).containsOnly(loaded.get(0));
+		assertThat(loader.findClassCalls(Local.class.getName())).isEqualTo(1);
+	}
+
+	@Test
+	void other_classes_load_while_a_class_is_loading() throws Exception {
+		loader = loader(Map.of(classEntry(Local.class), classBytes(Local.class), classEntry(Other.class), classBytes(Other.class)));
+		loader.block(Local.class.getName());
+
+		Thread blocked = Thread.ofVirtual().start(() -> {
+			try {
+				loader.loadClass(Local.class.getName());
+			} catch (ClassNotFoundException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertThat(loader.awaitBlocked()).isTrue();
+
+		assertThat(loader.loadClass(Other.class.getName()).getClassLoader()).isSameAs(loader);
+
+		loader.release();
+		blocked.join();
+		assertThat(loader.loadClass(Local.class.getName()).getClassLoader()).isSameAs(loader);
+	}
+
+	@Test
+	void local_resources_are_read_from_the_index() throws Exception {
+		loader = loader(Map.of("templates/page.html", "page".getBytes(StandardCharsets.UTF_8)));
+
+		try (InputStream in = loader.getResourceAsStream("templates/page.html")) {
+			assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("page");
+		}
+		assertThat(loader.resourceLookups()).isZero();
+	}
+
+	@Test
+	void resource_lookups_are_cached() throws Exception {
+		loader = loader(Map.of("i18n/messages.properties", "a=b".getBytes(StandardCharsets.UTF_8)));
+
+		List<URL> first = Collections.list(loader.getResources("i18n/messages.properties"));
+		List<URL> second = Collections.list(loader.getResources("i18n/messages.properties"));
+
+		assertThat(first).hasSize(1).isEqualTo(second);
+		assertThat(loader.getResource("i18n/messages.properties")).isEqualTo(first.get(0));
+		assertThat(loader.resourceLookups()).isEqualTo(1);
+	}
+
+	@Test
+	void absent_resources() throws Exception {
+		loader = loader(Map.of("templates/page.html", "page".getBytes(StandardCharsets.UTF_8)));
+
+		assertThat(loader.findResource("templates/missing.html")).isNull();
+		assertThat(loader.findResources("templates/missing.html").hasMoreElements()).isFalse();
+		assertThat(loader.getResource("templates/missing.html")).isNull();
+		assertThat(loader.getResourceAsStream("templates/missing.html")).isNull();
+	}
+
+	@Test
+	void resources_are_not_read_after_close() throws Exception {
+		loader = loader(Map.of("templates/page.html", "page".getBytes(StandardCharsets.UTF_8)));
+
+		loader.close();
+
+		assertThat(loader.getResourceAsStream("templates/page.html")).isNull();
+	}
+
+	/**
+	 * A module loader with one jar, nothing but the api is visible from the host.
+	 */
+	CountingClassLoader loader(final Map<String, byte[]> entries) throws IOException {
+		Path jar = dir.resolve("module-" + System.nanoTime() + ".jar");
+		try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+			for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+				out.putNextEntry(new ZipEntry(entry.getKey()));
+				out.write(entry.getValue());
+			}
+		}
+		URL url = new URL("jar:" + jar.toUri().toURL() + "!/");
+		return new CountingClassLoader(new URL[]{url}, new ModuleAPIClassLoader(getClass().getClassLoader(), List.of()));
+	}
+
+	static String classEntry(final Class<?> type) {
+		return type.getName().replace('.', '/') + ".class";
+	}
+
+	static byte[] classBytes(final Class<?> type) throws IOException {
+		try (InputStream in = type.getClassLoader().getResourceAsStream(classEntry(type))) {
+			return in.readAllBytes();
+		}
+	}
+
+	public static class Local {
+	}
+
+	public static class Other {
+	}
+
+	/**
+	 * Counts the local class lookups.
+	 */
+	static class CountingClassLoader extends ModuledFirstURLClassLoader {
+
+		private final Map<String, AtomicInteger> findClassCalls = new ConcurrentHashMap<>();
+
+		private volatile String blockedName;
+
+		private final CountDownLatch blocked = new CountDownLatch(1);
+
+		private final CountDownLatch released = new CountDownLatch(1);
+
+		private final AtomicInteger resourceLookups = new AtomicInteger();
+
+		CountingClassLoader(final URL[] classpath, final ModuleAPIClassLoader moduleAPIClassLoader) {
+			super(classpath, moduleAPIClassLoader);
+		}
+
+		@Override
+		protected Class<?> findClass(final String name) throws ClassNotFoundException {
+			findClassCalls.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet();
+			if (name.equals(blockedName)) {
+				blocked.countDown();
+				try {
+					released.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return super.findClass(name);
+		}
+
+		@Override
+		public URL findResource(final String name) {
+			resourceLookups.incrementAndGet();
+			return super.findResource(name);
+		}
+
+		@Override
+		public Enumeration<URL> findResources(final String name) throws IOException {
+			resourceLookups.incrementAndGet();
+			return super.findResources(name);
+		}
+
+		/**
+		 * The lookups of local resources by name.
+		 */
+		int resourceLookups() {
+			return resourceLookups.get();
+		}
+
+		/**
+		 * Blocks the loading of the class until {@link #release()}.
+		 */
+		void block(final String name) {
+			blockedName = name;
+		}
+
+		boolean awaitBlocked() throws InterruptedException {
+			return blocked.await(5, TimeUnit.SECONDS);
+		}
+
+		void release() {
+			released.countDown();
+		}
+
+		int findClassCalls(final String name) {
+			AtomicInteger calls = findClassCalls.get(name);
+			return calls != null ? calls.get() : 0;
+		}
+
+		Set<String> findClassCalls() {
+			return findClassCalls.keySet();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.condation.modules.manager;
+
+/*-
+ * #%L
+ * modules-manager
+ * %%
+ * Copyright (C) 2023 - 2024 CondationCMS
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ *
+ * @author thmarx
+ */
+public class VisibilityPolicyTest {
+
+	@Test
+	void allowed_package_and_sub_packages() {
+		VisibilityPolicy policy = VisibilityPolicy.builder().allow("com.example").build();
+
+		assertThat(policy.isAllowed("com.example.Foo")).isTrue();
+		assertThat(policy.isAllowed("com.example.sub.Foo")).isTrue();
+		assertThat(policy.isAllowed("com.other.Foo")).isFalse();
+	}
+
+	@Test
+	void prefix_matches_whole_package_names() {
+		VisibilityPolicy policy = VisibilityPolicy.builder().allow("com.example").build();
+
+		assertThat(policy.isAllowed("com.examples.Foo")).isFalse();
+		assertThat(policy.isAllowed("com.exampleFoo")).isFalse();
+		assertThat(policy.isAllowed("com.example")).isFalse();
+		assertThat(policy.isAllowed("com.exam")).isFalse();
+	}
+
+	@Test
+	void trailing_dot_is_optional() {
+		VisibilityPolicy policy = VisibilityPolicy.builder().allow("com.example.").allow("org.example").build();
+
+		assertThat(policy.isAllowed("com.example.Foo")).isTrue();
+		assertThat(policy.isAllowed("org.example.Foo")).isTrue();
+	}
+
+	@Test
+	void most_specific_rule_wins() {
+		VisibilityPolicy policy = VisibilityPolicy.builder()
+				.allow("com.example")
+				.deny("com.example.internal")
+				.allow("com.example.internal.api")
+				.build();
+
+		assertThat(policy.isAllowed("com.example.Foo")).isTrue();
+		assertThat(policy.isAllowed("com.example.internal.Foo")).isFalse();
+		assertThat(policy.isAllowed("com.example.internal.api.Foo")).isTrue();
+		assertThat(policy.isAllowed("com.example.internalx.Foo")).isTrue();
+	}
+
+	@Test
+	void deny_wins_for_the_same_package() {
+		VisibilityPolicy allowFirst = VisibilityPolicy.builder().allow("com.example").deny("com.example").build();
+		VisibilityPolicy denyFirst = VisibilityPolicy.builder().deny("com.example").allow("com.example").build();
+
+		assertThat(allowFirst.isAllowed("com.example.Foo")).isFalse();
+		assertThat(denyFirst.isAllowed("com.example.Foo")).isFalse();
+	}
+
+	@Test
+	void resource_names_use_the_same_rules() {
+		VisibilityPolicy policy = VisibilityPolicy.builder().allow("com.example").deny("com.example.internal").build();
+
+		assertThat(policy.isAllowed("com/example/foo.txt")).isTrue();
+		assertThat(policy.isAllowed("/com/example/foo.txt")).isTrue();
+		assertThat(policy.isAllowed("com/example/internal/foo.txt")).isFalse();
+		assertThat(policy.isAllowed("//com/example/foo.txt")).isFalse();
+	}
+
+	@Test
+	void empty_names_and_policies() {
+		VisibilityPolicy empty = VisibilityPolicy.builder().build();
+
+		assertThat(empty.isAllowed("com.example.Foo")).isFalse();
+		assertThat(empty.isAllowed("")).isFalse();
+		assertThat(VisibilityPolicy.builder().allow("com").build().isAllowed("")).isFalse();
+		assertThat(VisibilityPolicy.builder().allow("com").build().isAllowed("/")).isFalse();
+	}
+
+	@Test
+	void built_policy_is_not_changed_by_the_builder() {
+		VisibilityPolicy.Builder builder = VisibilityPolicy.builder().allow("com.example");
+		VisibilityPolicy policy = builder.build();
+
+		builder.deny("com.example.internal").allow("org.example");
+
+		assertThat(policy.isAllowed("com.example.internal.Foo")).isTrue();
+		assertThat(policy.isAllowed("org.example.Foo")).isFalse();
+	}
+
+	@Test
+	void system_policy() {
+		assertThat(VisibilityPolicy.SYSTEM.isAllowed("java.lang.String")).isTrue();
+		assertThat(VisibilityPolicy.SYSTEM.isAllowed("javax.annotation.Generated")).isFalse();
+		assertThat(VisibilityPolicy.SYSTEM.isAllowed("com.sun.net.httpserver.HttpServer")).isTrue();
+		assertThat(VisibilityPolicy.SYSTEM.isAllowed("com.condation.modules.api.Module")).isFalse();
+	}
+}